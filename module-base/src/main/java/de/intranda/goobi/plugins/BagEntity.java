@@ -0,0 +1,55 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * HTTP entity for a {@link BagPackage}. The length of the archive is not known before it has been written, so it is sent with chunked transfer
+ * encoding. The pooled transport writes the archive straight into the connection; the non-blocking transport reads it from
+ * {@link #getContent()}. The entity is repeatable, as the archive is written anew for each attempt.
+ */
+public class BagEntity extends AbstractHttpEntity {
+
+    private final BagPackage bag;
+
+    /**
+     * @param bag
+     */
+    public BagEntity(BagPackage bag) {
+        this.bag = bag;
+        setContentType(bag.getMimeType());
+        setChunked(true);
+    }
+
+    public BagPackage getBag() {
+        return bag;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return bag.openStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        bag.writeTo(outStream);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,337 @@
+package de.intranda.goobi.plugins;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Files of a folder as a BagIt package (RFC 8493), serialized as a tar or zip archive that is written straight into the body of the upload. Nothing
+ * is staged on local disk: each file is read once, copied into the archive and hashed on the way for the payload manifest, and the manifests
+ * follow the payload. Memory usage does not depend on the size of the files; only one manifest line per file is kept.
+ * <p>
+ * The archive contains a single folder named after the bag with bagit.txt, bag-info.txt, the payload below data/, the payload manifest and the tag
+ * manifest. The payload is stored without compression, as images hardly compress. The archive can be written several times, e.g. if the upload
+ * is repeated; the files are then read again.
+ */
+public class BagPackage {
+
+    private static final Logger log = Logger.getLogger(BagPackage.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Size of the pipe between the thread writing the archive and the upload, see {@link #openStream()} */
+    private static final int PIPE_SIZE = 1024 * 1024;
+
+    private final String format;
+    private final String bagName;
+    private final List<Path> files;
+    /** Sizes of the files when the package was created, as announced in bag-info.txt */
+    private final long[] sizes;
+    private final String algorithm;
+    private final long payloadBytes;
+    private final long created = System.currentTimeMillis();
+
+    /** Size and digest of the last archive that was written completely */
+    private volatile long size = -1;
+    private volatile String digest;
+
+    private BagPackage(String format, String bagName, List<Path> files, String algorithm) throws IOException {
+        this.format = format;
+        this.bagName = bagName;
+        this.files = files;
+        this.algorithm = algorithm;
+        this.sizes = new long[files.size()];
+        long bytes = 0;
+        for (int i = 0; i < files.size(); i++) {
+            sizes[i] = Files.size(files.get(i));
+            bytes += sizes[i];
+        }
+        this.payloadBytes = bytes;
+    }
+
+    /**
+     * @param packaging Configured packaging (none, tar or zip)
+     * @param bagName Name of the bag, e.g. the record identifier
+     * @param files Payload files
+     * @param algorithm Digest algorithm as used in HTTP headers (e.g. "sha-256"), for the manifests and the digest of the archive
+     * @return Package of the given files, or null if the files are not packaged
+     * @throws IOException if the size of a file cannot be read
+     */
+    public static BagPackage create(String packaging, String bagName, List<Path> files, String algorithm) throws IOException {
+        String value = packaging == null ? "none" : packaging.trim().toLowerCase(Locale.ENGLISH);
+        switch (value) {
+            case "tar":
+            case "zip":
+                return new BagPackage(value, bagName, files, algorithm);
+            case "none":
+                return null;
+            default:
+                log.warn("Unknown packaging ignored, the files are uploaded one by one: " + packaging);
+                return null;
+        }
+    }
+
+    /**
+     * @return Name of the binary in Fedora
+     */
+    public String getFileName() {
+        return "bag." + format;
+    }
+
+    public String getMimeType() {
+        return "tar".equals(format) ? "application/x-tar" : "application/zip";
+    }
+
+    public int getFileCount() {
+        return files.size();
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    /**
+     * @return Approximate size of the archive, before it has been written
+     */
+    public long getEstimatedSize() {
+        // headers, manifest lines and padding per entry, and the tag files
+        return payloadBytes + files.size() * 1024L + 16 * 1024L;
+    }
+
+    /**
+     * @return Size of the archive that was written last, or -1
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Hex encoded digest of the archive that was written last, or null
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Writes the archive to the given stream, which is not closed.
+     *
+     * @param out
+     * @throws IOException if a file cannot be read, or was changed while it was packaged
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        MessageDigest archiveDigest = DigestCache.newMessageDigest(algorithm);
+        CountingOutputStream counter = new CountingOutputStream(new DigestOutputStream(CloseShieldOutputStream.wrap(out), archiveDigest));
+        String manifestName = "manifest-" + getBagItAlgorithm() + ".txt";
+        StringBuilder manifest = new StringBuilder();
+        StringBuilder tagManifest = new StringBuilder();
+        try (ArchiveWriter archive = new ArchiveWriter(format, counter)) {
+            writeTagFile(archive, "bagit.txt", "BagIt-Version: 1.0\nTag-File-Character-Encoding: UTF-8\n", tagManifest);
+            writeTagFile(archive, "bag-info.txt", "Bagging-Date: " + LocalDate.now() + "\nPayload-Oxum: " + payloadBytes + "." + files.size()
+                    + "\nExternal-Identifier: " + bagName + "\nBag-Software-Agent: goobi-plugin-export-fedora\n", tagManifest);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                String name = "data/" + file.getFileName();
+                long fileSize = sizes[i];
+                if (Files.size(file) != fileSize) {
+                    throw new IOException("File was changed after the package was created: " + file);
+                }
+                MessageDigest fileDigest = DigestCache.newMessageDigest(algorithm);
+                OutputStream entry = archive.putEntry(bagName + "/" + name, fileSize, Files.getLastModifiedTime(file).toMillis(), false);
+                long copied = 0;
+                try (InputStream in = Files.newInputStream(file)) {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        if (copied + read > fileSize) {
+                            break;
+                        }
+                        fileDigest.update(buffer, 0, read);
+                        entry.write(buffer, 0, read);
+                        copied += read;
+                    }
+                }
+                if (copied != fileSize) {
+                    throw new IOException("File was changed while it was packaged: " + file);
+                }
+                archive.closeEntry();
+                manifest.append(Hex.encodeHexString(fileDigest.digest())).append("  ").append(encodePath(name)).append('\n');
+            }
+            writeTagFile(archive, manifestName, manifest.toString(), tagManifest);
+            writeTagFile(archive, "tagmanifest-" + getBagItAlgorithm() + ".txt", tagManifest.toString(), null);
+            archive.finish();
+        }
+        out.flush();
+        size = counter.getByteCount();
+        digest = Hex.encodeHexString(archiveDigest.digest());
+        log.debug("Bag " + bagName + " with " + files.size() + " files written (" + size + " bytes)");
+    }
+
+    /**
+     * Returns the archive as a stream, for transports that read the body of a request instead of writing it. A thread writes the archive into a
+     * pipe of fixed size; if writing fails, reading fails as well instead of ending early. The stream must be closed even if it is not read to the
+     * end: closing it stops the thread, which otherwise waits for free space in the pipe with a payload file open.
+     *
+     * @return
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream out = new PipedOutputStream(in);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                writeTo(out);
+            } catch (IOException e) {
+                failure.set(e);
+            } catch (RuntimeException e) {
+                failure.set(new IOException(e));
+            } finally {
+                // the failure is set before the end of the stream can be read
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    log.debug("Pipe of bag " + bagName + " could not be closed: " + e.getMessage());
+                }
+            }
+        }, "fedora-bag-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return new FilterInputStream(in) {
+
+            @Override
+            public int read() throws IOException {
+                return checkEnd(super.read());
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return checkEnd(super.read(b, off, len));
+            }
+
+            private int checkEnd(int read) throws IOException {
+                if (read == -1 && failure.get() != null) {
+                    throw new IOException("Bag " + bagName + " could not be written: " + failure.get().getMessage(), failure.get());
+                }
+                return read;
+            }
+        };
+    }
+
+    private void writeTagFile(ArchiveWriter archive, String name, String content, StringBuilder tagManifest) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        OutputStream entry = archive.putEntry(bagName + "/" + name, bytes.length, created, true);
+        entry.write(bytes);
+        archive.closeEntry();
+        if (tagManifest != null) {
+            MessageDigest tagDigest = DigestCache.newMessageDigest(algorithm);
+            tagManifest.append(Hex.encodeHexString(tagDigest.digest(bytes))).append("  ").append(name).append('\n');
+        }
+    }
+
+    /**
+     * @return Name of the digest algorithm as used in the names of the BagIt manifests, e.g. "sha256"
+     */
+    private String getBagItAlgorithm() {
+        return "sha".equals(algorithm) ? "sha1" : algorithm.replace("-", "");
+    }
+
+    /**
+     * Encodes the characters that may not appear in manifest paths unencoded.
+     */
+    private static String encodePath(String path) {
+        return path.replace("%", "%25").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    /**
+     * Entries of a tar or zip archive.
+     */
+    private static class ArchiveWriter implements AutoCloseable {
+
+        private final TarArchiveOutputStream tar;
+        private final ZipOutputStream zip;
+
+        private ArchiveWriter(String format, OutputStream out) {
+            if ("tar".equals(format)) {
+                tar = new TarArchiveOutputStream(out, StandardCharsets.UTF_8.name());
+                // long names and files of 8 GB and more in PAX headers
+                tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+                zip = null;
+            } else {
+                tar = null;
+                zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+            }
+        }
+
+        /**
+         * @param name Name within the archive
+         * @param size Size of the content
+         * @param modified Modification time
+         * @param compress If false, the content is stored
+         * @return Stream to write the content to
+         * @throws IOException
+         */
+        private OutputStream putEntry(String name, long size, long modified, boolean compress) throws IOException {
+            if (tar != null) {
+                TarArchiveEntry entry = new TarArchiveEntry(name);
+                entry.setSize(size);
+                entry.setModTime(modified);
+                tar.putArchiveEntry(entry);
+                return tar;
+            }
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(modified);
+            // the checksum of a stored entry is needed before its content, so the payload is deflated without compression instead
+            zip.setLevel(compress ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+            zip.putNextEntry(entry);
+            return zip;
+        }
+
+        private void closeEntry() throws IOException {
+            if (tar != null) {
+                tar.closeArchiveEntry();
+            } else {
+                zip.closeEntry();
+            }
+        }
+
+        private void finish() throws IOException {
+            if (tar != null) {
+                tar.finish();
+            } else {
+                zip.finish();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (tar != null) {
+                tar.close();
+            } else {
+                zip.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker for a Fedora host, shared by all exports in the JVM. After a number of consecutive transient failures, requests are no longer
+ * sent to the host for some time but fail right away, so an overloaded Fedora is not kept busy by every queued export. After that time a single
+ * request is let through; if it succeeds, requests are sent again, otherwise the breaker stays open for another period.
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean open = false;
+    private boolean trialInFlight = false;
+
+    private CircuitBreaker(String host, int failureThreshold, long openMillis) {
+        this.host = host;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @param url Request URL
+     * @param failureThreshold
+     * @param openMillis
+     * @return Circuit breaker for the host of the URL
+     */
+    static CircuitBreaker forUrl(String url, int failureThreshold, long openMillis) {
+        URI uri = URI.create(url);
+        String host = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        return breakers.computeIfAbsent(host + "|" + failureThreshold + "|" + openMillis,
+                key -> new CircuitBreaker(host, failureThreshold, openMillis));
+    }
+
+    /**
+     * Checks whether a request may be sent. If the request is let through as the single trial of an open breaker, its outcome must be recorded
+     * with {@link #record(boolean)}, or the trial must be ended with {@link #release()} if the request could not be sent.
+     *
+     * @return true if the request is the trial request of an open breaker
+     * @throws IOException if the breaker is open
+     */
+    public synchronized boolean acquire() throws IOException {
+        if (!open) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now < openUntil || trialInFlight) {
+            throw new IOException("Requests to " + host + " are suspended for " + Math.max(1, (openUntil - now) / 1000) + " s after "
+                    + consecutiveFailures + " consecutive failures");
+        }
+        // let a single request through to find out whether Fedora has recovered
+        trialInFlight = true;
+        return true;
+    }
+
+    /**
+     * Ends a trial request without an outcome, e.g. because the request could not be built or sent. The next request becomes the trial instead,
+     * so the breaker does not stay open for good.
+     */
+    public synchronized void release() {
+        trialInFlight = false;
+    }
+
+    /**
+     * Records the outcome of a request.
+     *
+     * @param success false if the request failed with a transient error
+     */
+    public synchronized void record(boolean success) {
+        if (success) {
+            if (open) {
+                log.info("Fedora at " + host + " is available again");
+            }
+            consecutiveFailures = 0;
+            open = false;
+            trialInFlight = false;
+            return;
+        }
+        consecutiveFailures++;
+        if (trialInFlight || (!open && consecutiveFailures >= failureThreshold)) {
+            open = true;
+            trialInFlight = false;
+            openUntil = System.currentTimeMillis() + openMillis;
+            log.warn("Requests to " + host + " are suspended for " + openMillis / 1000 + " s after " + consecutiveFailures + " consecutive failures");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Names of the resources contained in a Fedora container. The index is built from a single request for the containment triples (ldp:contains) of
+ * the container, so that the existence of each file does not have to be checked with a separate request.
+ */
+public class ContainerIndex {
+
+    private static final Logger log = Logger.getLogger(ContainerIndex.class);
+
+    private static final String LDP_CONTAINS = "http://www.w3.org/ns/ldp#contains";
+
+    private static final String PREFER_CONTAINMENT = "return=representation; include=\"http://www.w3.org/ns/ldp#PreferContainment\"; "
+            + "omit=\"http://www.w3.org/ns/ldp#PreferMembership http://fedora.info/definitions/v4/repository#ServerManaged\"";
+
+    private static final Pattern CONTAINS_TRIPLE = Pattern.compile("^<[^>]*>\\s+<" + Pattern.quote(LDP_CONTAINS) + ">\\s+<([^>]*)>\\s*\\.\\s*$");
+
+    private final Set<String> names;
+
+    private ContainerIndex(Set<String> names) {
+        this.names = names;
+    }
+
+    /**
+     * Lists the children of the given container.
+     *
+     * @param client
+     * @param containerUrl
+     * @return Index of the contained resources (empty if the container does not exist yet), or null if the listing failed and the existence of
+     *         each resource has to be checked separately
+     */
+    public static ContainerIndex load(FedoraClient client, String containerUrl) {
+        try {
+            FedoraResponse response = client.get(containerUrl, true, "Accept", "application/n-triples", "Prefer", PREFER_CONTAINMENT);
+            switch (response.getStatus()) {
+                case 200:
+                    ContainerIndex index = new ContainerIndex(parse(response.getBody()));
+                    log.debug("Container " + containerUrl + " contains " + index.names.size() + " resources");
+                    return index;
+                case 404:
+                case 410:
+                    return new ContainerIndex(Collections.emptySet());
+                default:
+                    log.warn("Container " + containerUrl + " could not be listed: " + response);
+                    return null;
+            }
+        } catch (IOException e) {
+            log.warn("Container " + containerUrl + " could not be listed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Extracts the names of the contained resources from the given N-Triples document.
+     *
+     * @param ntriples
+     * @return
+     */
+    static Set<String> parse(String ntriples) {
+        Set<String> names = new HashSet<>();
+        if (ntriples == null) {
+            return names;
+        }
+        for (String line : ntriples.split("\n")) {
+            Matcher matcher = CONTAINS_TRIPLE.matcher(line.trim());
+            if (matcher.matches()) {
+                String child = matcher.group(1);
+                if (child.endsWith("/")) {
+                    child = child.substring(0, child.length() - 1);
+                }
+                String name = child.substring(child.lastIndexOf('/') + 1);
+                // a literal plus sign is part of the name, not an encoded space
+                names.add(URLDecoder.decode(name.replace("+", "%2B"), StandardCharsets.UTF_8));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param name Name of the resource within the container
+     * @return true if the container holds a resource with the given name
+     */
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * @return Names of all contained resources
+     */
+    public Set<String> getNames() {
+        return Collections.unmodifiableSet(names);
+    }
+}
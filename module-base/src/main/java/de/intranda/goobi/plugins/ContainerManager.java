@@ -0,0 +1,228 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * Creates the containers of a record. Containers known to exist are kept in a JVM-wide cache for a configurable time, so repeated exports of a
+ * record do not send the same PUT requests again. The record container is created first, its child containers (e.g. /master and /media) are
+ * created concurrently.
+ * <p>
+ * Containers created within a transaction only exist after the commit, so they are added to the cache by {@link #commit()} and discarded by
+ * {@link #rollback()}. The cache is keyed by the URL outside of the transaction.
+ * <p>
+ * The record container can be placed in a sharded layout below "records" (e.g. "records/ab/cd/&lt;identifier&gt;"), so no single container
+ * holds millions of children. The intermediate containers are created implicitly by Fedora.
+ */
+public class ContainerManager {
+
+    private static final Logger log = Logger.getLogger(ContainerManager.class);
+
+    /** Expired entries are removed when the cache grows beyond this size */
+    private static final int MAX_CACHE_SIZE = 10000;
+
+    /** Containers known to exist, with the time their entry expires */
+    private static final Map<String, Long> knownContainers = new ConcurrentHashMap<>();
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fedora-container");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FedoraClient client;
+    private final ExportMetrics metrics;
+    private final String fedoraUrl;
+    private final long ttlMillis;
+    /** Containers created or found in the current transaction */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param client
+     * @param metrics
+     * @param fedoraUrl REST endpoint of Fedora
+     * @param ttlSeconds Time in seconds an existing container is remembered, or 0 to disable the cache
+     */
+    public ContainerManager(FedoraClient client, ExportMetrics metrics, String fedoraUrl, int ttlSeconds) {
+        this.client = client;
+        this.metrics = metrics;
+        this.fedoraUrl = fedoraUrl;
+        this.ttlMillis = ttlSeconds * 1000L;
+    }
+
+    /**
+     * Returns the path segments of the record container for the given layout.
+     *
+     * @param identifier Record identifier
+     * @param layout "flat" (records/&lt;identifier&gt;), "pairtree" (shards from the characters of the identifier) or "hashed" (shards from
+     *            the MD5 digest of the identifier)
+     * @param levels Number of shard levels of two characters each
+     * @return
+     */
+    public static String[] getRecordPath(String identifier, String layout, int levels) {
+        String shardSource;
+        switch (layout.toLowerCase(Locale.ENGLISH)) {
+            case "pairtree":
+                shardSource = identifier.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9]", "_");
+                break;
+            case "hashed":
+                shardSource = md5(identifier);
+                break;
+            default:
+                return new String[] { "records", identifier };
+        }
+        String[] path = new String[levels + 2];
+        path[0] = "records";
+        for (int i = 0; i < levels; i++) {
+            StringBuilder shard = new StringBuilder(2);
+            for (int j = 2 * i; j < 2 * i + 2; j++) {
+                // short identifiers are padded, so every record has the same depth
+                shard.append(j < shardSource.length() ? shardSource.charAt(j) : '_');
+            }
+            path[i + 1] = shard.toString();
+        }
+        path[levels + 1] = identifier;
+        return path;
+    }
+
+    /**
+     * Makes sure the record container and its children exist in the current transaction.
+     *
+     * @param transactionUrl Base URL of the current transaction
+     * @param recordUrl URL of the record container within the transaction
+     * @param children Names of the child containers
+     * @return URL of the first container that could not be created, or null if all containers exist
+     */
+    public String ensure(String transactionUrl, String recordUrl, List<String> children) {
+        if (!create(transactionUrl, recordUrl).join()) {
+            return recordUrl;
+        }
+        List<String> urls = new ArrayList<>(children.size());
+        List<CompletableFuture<Boolean>> creations = new ArrayList<>(children.size());
+        for (String child : children) {
+            String url = FedoraClient.path(recordUrl, child);
+            urls.add(url);
+            creations.add(create(transactionUrl, url));
+        }
+        String failed = null;
+        for (int i = 0; i < creations.size(); i++) {
+            if (!creations.get(i).join() && failed == null) {
+                failed = urls.get(i);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Adds the containers of the committed transaction to the cache.
+     */
+    public void commit() {
+        if (ttlMillis > 0) {
+            long expires = System.currentTimeMillis() + ttlMillis;
+            for (String url : pending) {
+                knownContainers.put(url, expires);
+            }
+            if (knownContainers.size() > MAX_CACHE_SIZE) {
+                purge();
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Forgets the containers of the rolled back transaction.
+     */
+    public void rollback() {
+        pending.clear();
+    }
+
+    /**
+     * Removes the given container and everything below it from the cache, e.g. because it is deleted.
+     *
+     * @param url Container URL outside of a transaction
+     */
+    public static void evict(String url) {
+        String prefix = url.endsWith("/") ? url : url + "/";
+        knownContainers.keySet().removeIf(key -> key.equals(url) || key.startsWith(prefix));
+    }
+
+    /**
+     * Creates the container with the given URL, unless it is known to exist.
+     *
+     * @param transactionUrl
+     * @param url Container URL within the transaction
+     * @return Future that completes with true if the container exists
+     */
+    private CompletableFuture<Boolean> create(String transactionUrl, String url) {
+        String key = FedoraIngest.toFedoraUrl(url, transactionUrl, fedoraUrl);
+        Long expires = knownContainers.get(key);
+        if (expires != null) {
+            if (expires > System.currentTimeMillis()) {
+                log.debug("Container known to exist: " + key);
+                return CompletableFuture.completedFuture(true);
+            }
+            knownContainers.remove(key, expires);
+        }
+        ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.CONTAINER);
+        // Create container (PUT operation with no entity - an empty entity will create an empty file instead)
+        CompletableFuture<FedoraResponse> request;
+        if (client.isAsync()) {
+            request = client.sendAsync("PUT", url, null, null);
+        } else {
+            request = CompletableFuture.supplyAsync(() -> client.sendAsync("PUT", url, null, null).join(), executor);
+        }
+        return request.handle((response, e) -> {
+            stopwatch.close();
+            if (e != null) {
+                log.error("Container could not be created: " + url, e);
+                return false;
+            }
+            switch (response.getStatus()) {
+                case 201:
+                    // Container created
+                    log.info("Container created: " + url);
+                    break;
+                case 204:
+                case 409:
+                    // Container already exists
+                    log.debug("Container already exists: " + url);
+                    break;
+                default:
+                    // Error
+                    log.error(response.toString());
+                    return false;
+            }
+            pending.add(key);
+            return true;
+        });
+    }
+
+    private static void purge() {
+        long now = System.currentTimeMillis();
+        knownContainers.values().removeIf(expires -> expires <= now);
+        if (knownContainers.size() > MAX_CACHE_SIZE) {
+            knownContainers.clear();
+        }
+    }
+
+    private static String md5(String identifier) {
+        try {
+            return Hex.encodeHexString(MessageDigest.getInstance("MD5").digest(identifier.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
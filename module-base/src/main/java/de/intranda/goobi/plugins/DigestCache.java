@@ -0,0 +1,226 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of file digests. An entry is only valid as long as path, size and modification time of the file are unchanged, so large files
+ * are hashed only once as long as they do not change.
+ * <p>
+ * The cache is stored as a tab separated text file with one line per file: size, modification time, hex digest and path.
+ */
+public class DigestCache {
+
+    private static final Logger log = Logger.getLogger(DigestCache.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path cacheFile;
+    private final String algorithm;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean modified = false;
+
+    /**
+     * @param cacheFile File the cache is read from and written to
+     * @param algorithm Digest algorithm as used in the HTTP "Want-Digest" header (e.g. "sha", "sha-256", "sha-512", "md5")
+     */
+    public DigestCache(Path cacheFile, String algorithm) {
+        this.cacheFile = cacheFile;
+        this.algorithm = algorithm.toLowerCase(Locale.ENGLISH);
+        // make sure the algorithm is supported before any file is processed
+        newMessageDigest(this.algorithm);
+        load();
+    }
+
+    /**
+     * @return Digest algorithm as used in HTTP headers
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the hex encoded digest of the given file, computing it only if the file was changed since it was last hashed.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public String getDigest(Path file) throws IOException {
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        String key = file.toAbsolutePath().toString();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry.digest;
+        }
+        MessageDigest messageDigest = newMessageDigest(algorithm);
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), messageDigest)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // only read to update the digest
+            }
+        }
+        String digest = Hex.encodeHexString(messageDigest.digest());
+        entries.put(key, new Entry(size, lastModified, digest));
+        modified = true;
+        return digest;
+    }
+
+    /**
+     * Discards the cached digest of the given file, so it is computed again on the next call of {@link #getDigest(Path)}.
+     *
+     * @param file
+     */
+    public void invalidate(Path file) {
+        if (entries.remove(file.toAbsolutePath().toString()) != null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * @return Name of the algorithm as used in the METS attribute CHECKSUMTYPE
+     */
+    public String getChecksumType() {
+        switch (algorithm) {
+            case "sha":
+                return "SHA-1";
+            default:
+                return algorithm.toUpperCase(Locale.ENGLISH);
+        }
+    }
+
+    /**
+     * Checks whether the given "Digest" response header (RFC 3230) contains a digest for the configured algorithm that is equal to the given hex
+     * encoded digest. Both base64 (as specified in RFC 3230) and hex encoded header values are accepted.
+     *
+     * @param digestHeader
+     * @param hexDigest
+     * @return
+     */
+    public boolean matches(String digestHeader, String hexDigest) {
+        if (digestHeader == null || hexDigest == null) {
+            return false;
+        }
+        for (String part : digestHeader.split(",")) {
+            int index = part.indexOf('=');
+            if (index < 0 || !part.substring(0, index).trim().equalsIgnoreCase(algorithm)) {
+                continue;
+            }
+            String value = part.substring(index + 1).trim();
+            if (value.equalsIgnoreCase(hexDigest)) {
+                return true;
+            }
+            try {
+                if (Hex.encodeHexString(Base64.getDecoder().decode(value)).equalsIgnoreCase(hexDigest)) {
+                    return true;
+                }
+            } catch (IllegalArgumentException e) {
+                // neither base64 nor matching hex value
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the cache back to disk, if it was changed.
+     */
+    public synchronized void save() {
+        if (!modified) {
+            return;
+        }
+        try {
+            Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                writer.write("# " + algorithm);
+                writer.newLine();
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(entry.size + "\t" + entry.lastModified + "\t" + entry.digest + "\t" + e.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            modified = false;
+        } catch (IOException e) {
+            log.error("Digest cache could not be written to " + cacheFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(cacheFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals("# " + algorithm)) {
+                // cache was written for a different algorithm
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length == 4) {
+                    entries.put(parts[3], new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Digest cache could not be read from " + cacheFile + ", all files will be hashed again: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Creates a message digest for the given HTTP digest algorithm name.
+     *
+     * @param algorithm
+     * @return
+     */
+    static MessageDigest newMessageDigest(String algorithm) {
+        String javaName;
+        switch (algorithm.toLowerCase(Locale.ENGLISH)) {
+            case "sha":
+                javaName = "SHA-1";
+                break;
+            case "md5":
+                javaName = "MD5";
+                break;
+            default:
+                javaName = algorithm.toUpperCase(Locale.ENGLISH);
+                break;
+        }
+        try {
+            return MessageDigest.getInstance(javaName);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, e);
+        }
+    }
+
+    private static class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+
+        private Entry(long size, long lastModified, String digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
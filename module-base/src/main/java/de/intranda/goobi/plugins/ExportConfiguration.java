@@ -0,0 +1,390 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Paths;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+import de.sub.goobi.config.ConfigPlugins;
+import de.sub.goobi.config.ConfigurationHelper;
+
+/**
+ * Snapshot of the plugin configuration. It is read once at the beginning of an export, so that concurrent exports are not affected by changes of
+ * the configuration file while they are running.
+ */
+public class ExportConfiguration {
+
+    private String fedoraUrl;
+    private boolean useVersioning;
+    private boolean ingestMasterImages;
+    private boolean ingestMediaImages;
+    private String masterPackaging;
+    private boolean ingestMetsFile;
+    private boolean ingestFulltext;
+    private boolean packFulltext;
+    private int fulltextUploadThreads;
+    private boolean exportMetsFile;
+    private int uploadThreads;
+    private boolean adaptiveConcurrency;
+    private long targetLatencyMillis;
+    private long maxBytesPerSecond;
+    private String[] uploadProfiles;
+    private int chunkFiles;
+    private long chunkBytes;
+    private boolean resumeIngest;
+    private boolean deltaIngest;
+    private String replaceMode;
+    private boolean sendDigest;
+    private String externalContent;
+    private String[] externalPaths;
+    private String digestAlgorithm;
+    private String[] mimeTypeMappings;
+    private int maxTransactions;
+    private int batchThreads;
+    private String recordLayout;
+    private int shardLevels;
+    private int containerCacheSeconds;
+    private int manifestMemoryEntries;
+    private boolean dryRun;
+    private String historyFile;
+    private boolean asyncExport;
+    private int queueWorkers;
+    private String queueFolder;
+    private FedoraClient.Settings clientSettings;
+    private RetryPolicy retryPolicy;
+
+    private ExportConfiguration() {
+    }
+
+    /**
+     * Reads the configuration of the given plugin.
+     *
+     * @param pluginName
+     * @return
+     */
+    public static ExportConfiguration load(String pluginName) {
+        ExportConfiguration ec = read(ConfigPlugins.getPluginConfig(pluginName));
+        if (ec.historyFile == null) {
+            ec.historyFile = Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "fedora_export_history.txt").toString();
+        }
+        if (ec.queueFolder == null) {
+            ec.queueFolder = Paths.get(ConfigurationHelper.getInstance().getTemporaryFolder(), "fedora_export_queue").toString();
+        }
+        return ec;
+    }
+
+    /**
+     * Reads the given configuration; missing values are replaced by their defaults.
+     *
+     * @param config
+     * @return
+     */
+    static ExportConfiguration read(XMLConfiguration config) {
+        ExportConfiguration ec = new ExportConfiguration();
+        ec.fedoraUrl = config.getString("fedoraUrl", "http://localhost:8080/fedora/rest");
+        ec.useVersioning = config.getBoolean("useVersioning", true);
+        ec.ingestMasterImages = config.getBoolean("ingestMasterImages", true);
+        ec.ingestMediaImages = config.getBoolean("ingestMediaImages", true);
+        ec.masterPackaging = config.getString("masterPackaging", "none");
+        ec.ingestMetsFile = config.getBoolean("ingestMetsFile", true);
+        ec.ingestFulltext = config.getBoolean("ingestFulltext", true);
+        ec.packFulltext = config.getBoolean("packFulltext", false);
+        ec.fulltextUploadThreads = config.getInt("fulltextUploadThreads", 16);
+        ec.exportMetsFile = config.getBoolean("exportMetsFile", true);
+        ec.uploadThreads = config.getInt("uploadThreads", 1);
+        ec.adaptiveConcurrency = config.getBoolean("adaptiveConcurrency", false);
+        ec.targetLatencyMillis = config.getLong("targetLatencyMillis", 0);
+        ec.maxBytesPerSecond = (long) (config.getDouble("maxMegabytesPerSecond", 0) * 1024 * 1024);
+        ec.uploadProfiles = config.getStringArray("uploadProfile");
+        ec.chunkFiles = config.getInt("chunkFiles", 0);
+        ec.chunkBytes = config.getLong("chunkMegabytes", 0) * 1024 * 1024;
+        ec.resumeIngest = config.getBoolean("resumeIngest", true);
+        ec.deltaIngest = config.getBoolean("deltaIngest", false);
+        ec.replaceMode = config.getString("replaceMode", "delete");
+        ec.sendDigest = config.getBoolean("sendDigest", false);
+        ec.externalContent = config.getString("externalContent", "none");
+        ec.externalPaths = config.getStringArray("externalPath");
+        ec.digestAlgorithm = config.getString("digestAlgorithm", "sha-256");
+        ec.mimeTypeMappings = config.getStringArray("mimeType");
+        ec.maxTransactions = config.getInt("maxTransactions", 4);
+        ec.batchThreads = config.getInt("batchThreads", ec.maxTransactions);
+        ec.recordLayout = config.getString("recordLayout", "flat");
+        ec.shardLevels = config.getInt("shardLevels", 2);
+        ec.containerCacheSeconds = config.getInt("containerCacheSeconds", 600);
+        ec.manifestMemoryEntries = config.getInt("manifestMemoryEntries", 20000);
+        ec.dryRun = config.getBoolean("dryRun", false);
+        ec.historyFile = config.getString("historyFile", null);
+        ec.asyncExport = config.getBoolean("asyncExport", false);
+        ec.queueWorkers = config.getInt("queueWorkers", 2);
+        ec.queueFolder = config.getString("queueFolder", null);
+        ec.clientSettings = new FedoraClient.Settings(config.getInt("maxConnections", 20), config.getInt("maxConnectionsPerRoute", 20),
+                config.getInt("keepAliveSeconds", 30), config.getInt("idleConnectionTimeout", 60), config.getInt("connectTimeout", 30),
+                config.getInt("socketTimeout", 300), config.getBoolean("expectContinue", true),
+                "http2".equals(config.getString("transport", "http1")));
+        ec.retryPolicy = new RetryPolicy(config.getInt("maxRetries", 3), config.getLong("retryDelayMillis", 500),
+                config.getLong("maxRetryDelayMillis", 30000), config.getInt("circuitBreakerFailures", 10),
+                config.getInt("circuitBreakerSeconds", 30));
+        return ec;
+    }
+
+    /**
+     * @return REST endpoint of the target Fedora application
+     */
+    public String getFedoraUrl() {
+        return fedoraUrl;
+    }
+
+    /**
+     * @return If true, new versions of existing resources will be added; if false, the record will be deleted and created anew
+     */
+    public boolean isUseVersioning() {
+        return useVersioning;
+    }
+
+    public boolean isIngestMasterImages() {
+        return ingestMasterImages;
+    }
+
+    public boolean isIngestMediaImages() {
+        return ingestMediaImages;
+    }
+
+    /**
+     * @return Packaging of the master images (none, tar or zip); with tar or zip they are ingested as a single BagIt package
+     */
+    public String getMasterPackaging() {
+        return masterPackaging;
+    }
+
+    public boolean isIngestMetsFile() {
+        return ingestMetsFile;
+    }
+
+    public boolean isExportMetsFile() {
+        return exportMetsFile;
+    }
+
+    /**
+     * @return If true, the OCR results are ingested when Goobi requests the export of the fulltext
+     */
+    public boolean isIngestFulltext() {
+        return ingestFulltext;
+    }
+
+    /**
+     * @return If true, the OCR results of a process are ingested as a single archive with an index instead of one binary per file
+     */
+    public boolean isPackFulltext() {
+        return packFulltext;
+    }
+
+    /**
+     * @return Maximum number of concurrent uploads of fulltext files
+     */
+    public int getFulltextUploadThreads() {
+        return fulltextUploadThreads;
+    }
+
+    /**
+     * @return Maximum number of concurrent uploads within one export
+     */
+    public int getUploadThreads() {
+        return uploadThreads;
+    }
+
+    /**
+     * @return true if files shall be committed in several transactions instead of one for the whole process
+     */
+    public boolean isChunkedIngest() {
+        return chunkFiles > 0 || chunkBytes > 0;
+    }
+
+    /**
+     * @return Maximum number of files per transaction in chunked mode, or 0 for no limit
+     */
+    public int getChunkFiles() {
+        return chunkFiles;
+    }
+
+    /**
+     * @return Maximum number of bytes per transaction in chunked mode, or 0 for no limit
+     */
+    public long getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * @return true if an interrupted export shall be continued from the files that were not committed yet; only chunked ingest commits files
+     *         before the end of the export, so the journal is not kept otherwise
+     */
+    public boolean isResumeIngest() {
+        return resumeIngest && isChunkedIngest();
+    }
+
+    public boolean isDeltaIngest() {
+        return deltaIngest;
+    }
+
+    /**
+     * @return If true, a record is updated in place instead of being deleted and created anew when versioning is not used: changed binaries are
+     *         overwritten, unchanged ones are kept, and binaries without a local file are deleted
+     */
+    public boolean isDiffReplace() {
+        return !useVersioning && "diff".equalsIgnoreCase(replaceMode);
+    }
+
+    /**
+     * @return If true, existing binaries are compared with the local files by their digest and only uploaded if they differ
+     */
+    public boolean isCompareDigests() {
+        return (deltaIngest && useVersioning) || isDiffReplace();
+    }
+
+    /**
+     * @return If true, every binary is uploaded with a "Digest" header, so Fedora verifies its fixity on ingest
+     */
+    public boolean isSendDigest() {
+        return sendDigest;
+    }
+
+    /**
+     * @return Handling of binaries ingested by reference (none, copy, proxy or redirect)
+     */
+    public String getExternalContent() {
+        return externalContent;
+    }
+
+    /**
+     * @return Mappings of local paths to Fedora-visible locations in the form "local path=Fedora location"
+     */
+    public String[] getExternalPaths() {
+        return externalPaths;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * @return Configured mime types in the form "extension=mime/type"
+     */
+    public String[] getMimeTypeMappings() {
+        return mimeTypeMappings;
+    }
+
+    /**
+     * @return Maximum number of transactions open at the same time against the Fedora host, across all exports
+     */
+    public int getMaxTransactions() {
+        return maxTransactions;
+    }
+
+    /**
+     * @return Number of processes exported concurrently by a batch export
+     */
+    public int getBatchThreads() {
+        return batchThreads;
+    }
+
+    /**
+     * @return Layout of the record containers: "flat", "pairtree" or "hashed"
+     */
+    public String getRecordLayout() {
+        return recordLayout;
+    }
+
+    /**
+     * @return Number of shard levels between "records" and the record container, if the layout is not flat
+     */
+    public int getShardLevels() {
+        return shardLevels;
+    }
+
+    /**
+     * @return Time in seconds containers known to exist are remembered, or 0 if they are not cached
+     */
+    public int getContainerCacheSeconds() {
+        return containerCacheSeconds;
+    }
+
+    /**
+     * @return Number of ingested files kept in memory for the METS file before the manifest is moved to a temporary file, or 0 for no limit
+     */
+    public int getManifestMemoryEntries() {
+        return manifestMemoryEntries;
+    }
+
+    /**
+     * @return If true, exports are only planned: the files to upload, the requests and the expected duration are reported, but nothing is changed
+     *         in Fedora
+     */
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * @return File with the throughput of earlier exports, used to estimate the duration of planned exports, or null if none is kept
+     */
+    public String getHistoryFile() {
+        return historyFile;
+    }
+
+    /**
+     * @return If true, an export only queues the process; the ingest runs in the background and the export step is closed once it is committed
+     */
+    public boolean isAsyncExport() {
+        return asyncExport;
+    }
+
+    /**
+     * @return Number of exports of the queue that run at the same time
+     */
+    public int getQueueWorkers() {
+        return queueWorkers;
+    }
+
+    /**
+     * @return Folder of the persistent export queue
+     */
+    public String getQueueFolder() {
+        return queueFolder;
+    }
+
+    /**
+     * @return If true, the number of concurrent uploads is adjusted to the latency and load of Fedora, up to the configured number of threads
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    /**
+     * @return Upload duration above which adaptive concurrency reduces the number of concurrent uploads, or 0 to only react to errors
+     */
+    public long getTargetLatencyMillis() {
+        return targetLatencyMillis;
+    }
+
+    /**
+     * @return Maximum upload rate of all exports together in bytes per second, or 0 for no limit
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * @return Upload limits for times of day in the form "HH:mm-HH:mm key=value ..."
+     */
+    public String[] getUploadProfiles() {
+        return uploadProfiles;
+    }
+
+    /**
+     * @return Retry and circuit breaker settings for all requests against Fedora
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public FedoraClient.Settings getClientSettings() {
+        return clientSettings;
+    }
+}
@@ -0,0 +1,391 @@
+package de.intranda.goobi.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Timings and counters of Fedora exports. Each export records into its own instance, which forwards everything to the JVM-wide instance returned
+ * by {@link #getGlobal()}. The global instance is registered as MBean "de.intranda.goobi.plugins:type=FedoraExport", the instance of an export is
+ * summarized in the process log with {@link #getSummary()}.
+ * <p>
+ * Timings are kept as histograms with fixed, roughly logarithmic buckets, so recording is cheap and needs no locking; percentiles are estimated
+ * from the upper bound of the bucket they fall into.
+ */
+public class ExportMetrics implements ExportMetricsMBean {
+
+    private static final Logger log = Logger.getLogger(ExportMetrics.class);
+
+    /** Whole export, from the start of the first transaction to the end of the last one */
+    public static final String EXPORT = "export";
+    /** Deletion of the record if versioning is not used */
+    public static final String DELETE = "delete";
+    /** Creation of a single container */
+    public static final String CONTAINER = "container";
+    /** Upload of the files of a folder (wall-clock time, used for the throughput) */
+    public static final String FOLDER = "folder";
+    /** Upload of a single file, including the existence and digest checks */
+    public static final String UPLOAD = "upload";
+    /** Generation of the METS file */
+    public static final String METS = "mets";
+    /** Replacement of the file URLs in the METS file */
+    public static final String REWRITE = "rewrite";
+    /** Commit of a transaction */
+    public static final String COMMIT = "commit";
+
+    /** Files that were uploaded */
+    public static final String FILES_UPLOADED = "filesUploaded";
+    /** Files that were skipped because Fedora or the journal already held them */
+    public static final String FILES_SKIPPED = "filesSkipped";
+    /** Files that were deleted from Fedora because they no longer exist locally */
+    public static final String FILES_DELETED = "filesDeleted";
+    /** Files that were ingested as external content instead of being uploaded */
+    public static final String FILES_REFERENCED = "filesReferenced";
+    /** Keep-alive requests for transactions */
+    public static final String TRANSACTION_REFRESHES = "transactionRefreshes";
+    /** Requests that were sent again after a failure */
+    public static final String RETRIES = "retries";
+    public static final String EXPORTS_SUCCEEDED = "exportsSucceeded";
+    public static final String EXPORTS_FAILED = "exportsFailed";
+
+    /** Upper bounds of the histogram buckets in milliseconds; the last bucket is unbounded */
+    private static final long[] BUCKETS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000 };
+
+    private static final ExportMetrics global = createGlobal();
+
+    private final ExportMetrics parent;
+    private final Map<String, Histogram> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<Integer, LongAdder> statusCounts = new ConcurrentSkipListMap<>();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final long startTime = System.nanoTime();
+
+    /**
+     * @param parent Metrics all values are forwarded to, or null
+     */
+    public ExportMetrics(ExportMetrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return Metrics of all exports since the start of the JVM (or the last reset)
+     */
+    public static ExportMetrics getGlobal() {
+        return global;
+    }
+
+    private static ExportMetrics createGlobal() {
+        ExportMetrics metrics = new ExportMetrics(null);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("de.intranda.goobi.plugins:type=FedoraExport");
+            if (server.isRegistered(name)) {
+                // the plugin was loaded again, e.g. after a redeployment
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException | RuntimeException e) {
+            log.warn("Fedora export metrics could not be registered with JMX: " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    /**
+     * Starts measuring the given phase; the time is recorded when the returned stopwatch is closed.
+     *
+     * @param phase
+     * @return
+     */
+    public Stopwatch start(String phase) {
+        return new Stopwatch(phase);
+    }
+
+    /**
+     * Records the duration of the given phase.
+     *
+     * @param phase
+     * @param nanos
+     */
+    public void record(String phase, long nanos) {
+        timers.computeIfAbsent(phase, key -> new Histogram()).record(nanos);
+        if (parent != null) {
+            parent.record(phase, nanos);
+        }
+    }
+
+    public void increment(String counter) {
+        counters.computeIfAbsent(counter, key -> new LongAdder()).increment();
+        if (parent != null) {
+            parent.increment(counter);
+        }
+    }
+
+    /**
+     * Counts a response of Fedora with the given HTTP status.
+     *
+     * @param status
+     */
+    public void countStatus(int status) {
+        statusCounts.computeIfAbsent(status, key -> new LongAdder()).increment();
+        if (parent != null) {
+            parent.countStatus(status);
+        }
+    }
+
+    public void addUploadedBytes(long bytes) {
+        uploadedBytes.add(bytes);
+        if (parent != null) {
+            parent.addUploadedBytes(bytes);
+        }
+    }
+
+    /**
+     * @param status HTTP status
+     * @return Number of Fedora responses with the given status
+     */
+    public long getStatusCount(int status) {
+        LongAdder adder = statusCounts.get(status);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public long getCount(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Returns a compact, single line summary for the process log.
+     *
+     * @return
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder("Fedora export metrics: duration ");
+        sb.append(formatMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+        sb.append("; files uploaded ").append(getCount(FILES_UPLOADED)).append(", skipped ").append(getCount(FILES_SKIPPED));
+        if (getCount(FILES_DELETED) > 0) {
+            sb.append(", deleted ").append(getCount(FILES_DELETED));
+        }
+        if (getCount(FILES_REFERENCED) > 0) {
+            sb.append(", referenced ").append(getCount(FILES_REFERENCED));
+        }
+        sb.append("; ").append(formatBytes(uploadedBytes.sum())).append(" at ").append(formatBytes((long) getBytesPerSecond())).append("/s");
+        for (Map.Entry<String, Histogram> entry : timers.entrySet()) {
+            sb.append("; ").append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        sb.append("; HTTP");
+        for (Map.Entry<Integer, LongAdder> entry : statusCounts.entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('x').append(entry.getValue().sum());
+        }
+        sb.append("; transaction refreshes ").append(getCount(TRANSACTION_REFRESHES)).append(", retries ").append(getCount(RETRIES));
+        return sb.toString();
+    }
+
+    @Override
+    public long getExportsSucceeded() {
+        return getCount(EXPORTS_SUCCEEDED);
+    }
+
+    @Override
+    public long getExportsFailed() {
+        return getCount(EXPORTS_FAILED);
+    }
+
+    @Override
+    public long getFilesUploaded() {
+        return getCount(FILES_UPLOADED);
+    }
+
+    @Override
+    public long getFilesSkipped() {
+        return getCount(FILES_SKIPPED);
+    }
+
+    @Override
+    public long getFilesDeleted() {
+        return getCount(FILES_DELETED);
+    }
+
+    @Override
+    public long getFilesReferenced() {
+        return getCount(FILES_REFERENCED);
+    }
+
+    @Override
+    public long getUploadedBytes() {
+        return uploadedBytes.sum();
+    }
+
+    /**
+     * @return Number of responses received from Fedora
+     */
+    public long getRequestCount() {
+        long total = 0;
+        for (LongAdder count : statusCounts.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return Time since this instance was created
+     */
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        Histogram folders = timers.get(FOLDER);
+        if (folders == null || folders.totalNanos.sum() == 0) {
+            return 0;
+        }
+        return uploadedBytes.sum() * 1e9 / folders.totalNanos.sum();
+    }
+
+    @Override
+    public long getTransactionRefreshes() {
+        return getCount(TRANSACTION_REFRESHES);
+    }
+
+    @Override
+    public long getRetries() {
+        return getCount(RETRIES);
+    }
+
+    @Override
+    public String[] getTimings() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Histogram> entry : timers.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue().toDetailString());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getResponseCounts() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Integer, LongAdder> entry : statusCounts.entrySet()) {
+            lines.add(entry.getKey() + "=" + entry.getValue().sum());
+        }
+        return lines.toArray(new String[0]);
+    }
+
+    @Override
+    public void reset() {
+        timers.clear();
+        counters.clear();
+        statusCounts.clear();
+        uploadedBytes.reset();
+    }
+
+    static String formatMillis(long millis) {
+        if (millis < 1000) {
+            return millis + " ms";
+        }
+        return String.format(Locale.ENGLISH, "%.1f s", millis / 1000.0);
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ENGLISH, "%.1f KB", bytes / 1024.0);
+        }
+        if (bytes < 1024L * 1024 * 1024) {
+            return String.format(Locale.ENGLISH, "%.1f MB", bytes / (1024.0 * 1024));
+        }
+        return String.format(Locale.ENGLISH, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    /**
+     * Measures the duration of a phase; see {@link ExportMetrics#start(String)}.
+     */
+    public class Stopwatch implements AutoCloseable {
+
+        private final String phase;
+        private final long start = System.nanoTime();
+
+        private Stopwatch(String phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public void close() {
+            record(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Latency histogram with the fixed buckets of {@link ExportMetrics#BUCKETS}.
+     */
+    private static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        private void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int index = 0;
+            while (index < BUCKETS.length && millis > BUCKETS[index]) {
+                index++;
+            }
+            buckets.incrementAndGet(index);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        /**
+         * @param percentile between 0 and 1
+         * @return Upper bound of the bucket the percentile falls into, in milliseconds (the maximum for the unbounded bucket)
+         */
+        private long getPercentile(double percentile) {
+            long total = count.sum();
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(BUCKETS[i], TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+        }
+
+        private long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+        }
+
+        @Override
+        public String toString() {
+            long n = count.sum();
+            if (n == 1) {
+                return formatMillis(getTotalMillis());
+            }
+            return n + "x " + formatMillis(getTotalMillis()) + " (p95 " + formatMillis(getPercentile(0.95)) + ")";
+        }
+
+        private String toDetailString() {
+            long n = count.sum();
+            return "count=" + n + ", total=" + getTotalMillis() + " ms, mean=" + (n == 0 ? 0 : getTotalMillis() / n) + " ms, p50<="
+                    + getPercentile(0.5) + " ms, p95<=" + getPercentile(0.95) + " ms, p99<=" + getPercentile(0.99) + " ms, max="
+                    + TimeUnit.NANOSECONDS.toMillis(maxNanos.get()) + " ms";
+        }
+    }
+}
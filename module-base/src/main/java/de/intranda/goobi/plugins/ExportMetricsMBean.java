@@ -0,0 +1,45 @@
+package de.intranda.goobi.plugins;
+
+/**
+ * JMX view of the Fedora export metrics of the JVM.
+ */
+public interface ExportMetricsMBean {
+
+    long getExportsSucceeded();
+
+    long getExportsFailed();
+
+    long getFilesUploaded();
+
+    long getFilesSkipped();
+
+    long getFilesDeleted();
+
+    long getFilesReferenced();
+
+    long getUploadedBytes();
+
+    /**
+     * @return Uploaded bytes divided by the time spent uploading folders
+     */
+    double getBytesPerSecond();
+
+    long getTransactionRefreshes();
+
+    long getRetries();
+
+    /**
+     * @return Count, total, mean, percentiles and maximum of the duration of each phase
+     */
+    String[] getTimings();
+
+    /**
+     * @return Number of Fedora responses per HTTP status, e.g. "201=120"
+     */
+    String[] getResponseCounts();
+
+    /**
+     * Clears all values.
+     */
+    void reset();
+}
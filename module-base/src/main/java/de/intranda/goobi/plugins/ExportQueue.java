@@ -0,0 +1,423 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.LogType;
+import org.goobi.production.enums.StepStatus;
+
+import de.sub.goobi.helper.CloseStepHelper;
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.persistence.managers.ProcessManager;
+import de.sub.goobi.persistence.managers.StepManager;
+
+/**
+ * Persistent queue of exports that run in the background, so the export step does not wait for the ingest. Each job is a file in the queue folder
+ * until its export has ended, so jobs that were queued or running when Goobi was stopped are run again once the queue is started after the
+ * restart; an interrupted ingest then continues from its journal.
+ * <p>
+ * A fixed number of workers runs the jobs. The queue is fair across projects: the workers take the oldest job of each project in turn, so a large
+ * migration of one project does not hold back the exports of the others. The progress of each job is written to the process log.
+ * <p>
+ * The export step of a job is the step of the process that exports to the DMS and is in work when the job is queued. The step is set to "in
+ * flight" when the job is queued. Queuing counts as a successful export, so Goobi may close the step right away, before the ingest has run; the
+ * queue therefore owns the status of the step until the job has ended. When the export has been committed, the worker closes the step if it is
+ * still open; if the export fails, the step is set to error whatever its current status. An export started by hand for a process without such a
+ * step is queued without a step, and no step is changed.
+ * <p>
+ * A job file is a single tab separated line: process ID, project ID, step ID (or -1), time the job was queued, whether images and fulltext are
+ * exported (true or false) and export folder.
+ */
+public class ExportQueue {
+
+    private static final Logger log = Logger.getLogger(ExportQueue.class);
+
+    private static final String JOB_SUFFIX = ".job";
+
+    /** Queues by folder, there is one per folder in the JVM */
+    private static final Map<Path, ExportQueue> queues = new HashMap<>();
+
+    private final Path folder;
+    private final String pluginName;
+    /** Queued jobs by project, in the order the projects take turns */
+    private final Map<Integer, Deque<Job>> pending = new LinkedHashMap<>();
+    /** Processes with a queued or running job */
+    private final Set<Integer> processes = new HashSet<>();
+    private final ExecutorService workers;
+    private long sequence = 0;
+    private int running = 0;
+
+    private ExportQueue(Path folder, String pluginName, int workerCount) throws IOException {
+        this.folder = folder;
+        this.pluginName = pluginName;
+        Files.createDirectories(folder);
+        load();
+        this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, "fedora-export-queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.submit(this::work);
+        }
+    }
+
+    /**
+     * Returns the queue of the configured folder and starts it, if this has not happened yet. Jobs left in the folder by an earlier run of Goobi
+     * are queued again.
+     *
+     * @param pluginName Name of the plugin, used to read the configuration for each job
+     * @param config Plugin configuration
+     * @return
+     * @throws IOException if the queue folder cannot be read
+     */
+    public static synchronized ExportQueue get(String pluginName, ExportConfiguration config) throws IOException {
+        Path folder = Paths.get(config.getQueueFolder()).toAbsolutePath().normalize();
+        ExportQueue queue = queues.get(folder);
+        if (queue == null) {
+            queue = new ExportQueue(folder, pluginName, Math.max(1, config.getQueueWorkers()));
+            queues.put(folder, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Adds the export of the given process to the queue and sets its export step in flight (see {@link #holdExportStep(Process)}).
+     *
+     * @param process
+     * @param destination Export folder for the METS file
+     * @param exportImages If false, the images are not exported
+     * @param exportFulltext If true, the fulltext is exported
+     * @return false if an export of the process is already queued or running
+     * @throws IOException if the job could not be stored
+     */
+    public synchronized boolean enqueue(Process process, String destination, boolean exportImages, boolean exportFulltext) throws IOException {
+        if (processes.contains(process.getId())) {
+            return false;
+        }
+        Step step = holdExportStep(process);
+        Job job = new Job(folder.resolve(String.format("%019d", sequence++) + JOB_SUFFIX), process.getId(),
+                process.getProjekt() == null ? -1 : process.getProjekt().getId(), step == null ? -1 : step.getId(), System.currentTimeMillis(),
+                exportImages, exportFulltext, destination);
+        job.save();
+        add(job);
+        if (step != null) {
+            saveStep(step);
+        }
+        int position = size();
+        Helper.addMessageToProcessLog(process.getId(), LogType.INFO, "Fedora export queued (" + position + (position == 1 ? " job" : " jobs")
+                + " waiting); " + (step == null ? "no export step is in work, so no step is closed." : "the step " + step.getTitel()
+                        + " is set to error if the ingest fails."));
+        return true;
+    }
+
+    /**
+     * Returns the export step of the given process: the step that exports to the DMS and is in work, or in flight if the export is queued again.
+     *
+     * @param process
+     * @return Export step, or null if the process has no export step in work, e.g. if the export was started by hand
+     */
+    public static Step findExportStep(Process process) {
+        if (process.getSchritte() == null) {
+            return null;
+        }
+        for (Step step : process.getSchritte()) {
+            if (step.isTypExportDMS()
+                    && (step.getBearbeitungsstatusEnum() == StepStatus.INWORK || step.getBearbeitungsstatusEnum() == StepStatus.INFLIGHT)) {
+                return step;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the export step of the given process in flight, without saving it.
+     *
+     * @param process
+     * @return Export step, or null if the process has no export step in work
+     */
+    static Step holdExportStep(Process process) {
+        Step step = findExportStep(process);
+        if (step != null) {
+            step.setBearbeitungsstatusEnum(StepStatus.INFLIGHT);
+        }
+        return step;
+    }
+
+    /**
+     * @param step Export step of a committed job, or null
+     * @return true if the step still has to be closed; Goobi may have closed it when the job was queued
+     */
+    static boolean isCloseNeeded(Step step) {
+        return step != null && step.getBearbeitungsstatusEnum() != StepStatus.DONE;
+    }
+
+    /**
+     * Sets the export step of a failed job to error, without saving it. The queue put the step in flight, so it is set to error even if Goobi
+     * closed it in the meantime, as the export it was closed for was never committed.
+     *
+     * @param step Export step of the job, or null
+     * @return true if the status was changed
+     */
+    static boolean failExportStep(Step step) {
+        if (step == null || step.getBearbeitungsstatusEnum() == StepStatus.ERROR) {
+            return false;
+        }
+        step.setBearbeitungsstatusEnum(StepStatus.ERROR);
+        return true;
+    }
+
+    private static void saveStep(Step step) {
+        try {
+            StepManager.saveStep(step);
+        } catch (DAOException e) {
+            log.error("Status of step " + step.getTitel() + " could not be saved: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return Number of queued jobs that have not been started yet
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (Deque<Job> jobs : pending.values()) {
+            size += jobs.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return Number of jobs that are running
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    private synchronized void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + JOB_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        // the zero padded sequence numbers sort in the order the jobs were queued
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                sequence = Math.max(sequence, Long.parseLong(name.substring(0, name.length() - JOB_SUFFIX.length())) + 1);
+                if (!add(Job.read(file))) {
+                    // a second job of the same process would only export it again
+                    Files.delete(file);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Invalid export job ignored: " + file + " (" + e.getMessage() + ")");
+            }
+        }
+        if (!files.isEmpty()) {
+            log.info("Export queue " + folder + " resumed with " + size() + " jobs");
+        }
+    }
+
+    /**
+     * @return false if the process already has a job
+     */
+    private boolean add(Job job) {
+        if (!processes.add(job.processId)) {
+            return false;
+        }
+        pending.computeIfAbsent(job.projectId, k -> new ArrayDeque<>()).add(job);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits for the next job. The project of the returned job moves to the end of the turn order.
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    private synchronized Job take() throws InterruptedException {
+        while (pending.isEmpty()) {
+            wait();
+        }
+        Iterator<Map.Entry<Integer, Deque<Job>>> projects = pending.entrySet().iterator();
+        Map.Entry<Integer, Deque<Job>> next = projects.next();
+        projects.remove();
+        Job job = next.getValue().poll();
+        if (!next.getValue().isEmpty()) {
+            pending.put(next.getKey(), next.getValue());
+        }
+        running++;
+        return job;
+    }
+
+    private synchronized void finish(Job job) {
+        running--;
+        processes.remove(job.processId);
+        try {
+            Files.deleteIfExists(job.file);
+        } catch (IOException e) {
+            log.warn("Export job " + job.file + " could not be deleted, it will run again after a restart: " + e.getMessage());
+        }
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Job job = take();
+                try {
+                    run(job);
+                } catch (RuntimeException e) {
+                    log.error("Export of process " + job.processId + " from the queue failed: " + e.getMessage(), e);
+                    Helper.addMessageToProcessLog(job.processId, LogType.ERROR, "Fedora export from the queue failed: " + e.getMessage());
+                } finally {
+                    finish(job);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Exports the process of the given job and closes its step if the ingest was committed, or sets it to error if the export failed.
+     *
+     * @param job
+     */
+    private void run(Job job) {
+        Process process = ProcessManager.getProcessById(job.processId);
+        if (process == null) {
+            log.warn("Process " + job.processId + " of export job " + job.file + " no longer exists, job removed");
+            return;
+        }
+        long waited = System.currentTimeMillis() - job.enqueued;
+        Helper.addMessageToProcessLog(process.getId(), LogType.DEBUG,
+                "Fedora export started from the queue after waiting " + ExportMetrics.formatMillis(waited));
+        ExportConfiguration config = ExportConfiguration.load(pluginName);
+        boolean success = false;
+        try (FedoraClient client = FedoraClient.acquire(config.getClientSettings())) {
+            FedoraIngest ingest = new FedoraIngest(process, config, client);
+            ingest.setExportImages(job.exportImages);
+            ingest.setExportFulltext(job.exportFulltext);
+            success = ingest.run(job.destination);
+        } finally {
+            if (!success) {
+                fail(process, job);
+            }
+        }
+        if (!success) {
+            return;
+        }
+        Step step = findStep(process, job.stepId);
+        if (step == null) {
+            log.debug("Export step of process " + process.getTitel() + " not found, no step closed");
+        } else if (!isCloseNeeded(step)) {
+            log.debug("Export step " + step.getTitel() + " of process " + process.getTitel() + " is already closed");
+        } else if (CloseStepHelper.closeStep(step, null)) {
+            Helper.addMessageToProcessLog(process.getId(), LogType.INFO, "Fedora export committed, step " + step.getTitel() + " closed.");
+        } else {
+            Helper.addMessageToProcessLog(process.getId(), LogType.ERROR,
+                    "Fedora export committed, but step " + step.getTitel() + " could not be closed.");
+        }
+    }
+
+    /**
+     * Sets the export step of a failed job to error, see {@link #failExportStep(Step)}.
+     *
+     * @param process
+     * @param job
+     */
+    private static void fail(Process process, Job job) {
+        Step step = findStep(process, job.stepId);
+        boolean changed = failExportStep(step);
+        if (changed) {
+            saveStep(step);
+        }
+        // the ingest has written the reason to the process log
+        Helper.addMessageToProcessLog(process.getId(), LogType.ERROR,
+                "Fedora export from the queue failed" + (changed ? ", step " + step.getTitel() + " set to error." : "."));
+    }
+
+    private static Step findStep(Process process, int stepId) {
+        if (stepId < 0 || process.getSchritte() == null) {
+            return null;
+        }
+        for (Step step : process.getSchritte()) {
+            if (step.getId() != null && step.getId() == stepId) {
+                return step;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Export of a single process.
+     */
+    private static class Job {
+
+        private final Path file;
+        private final int processId;
+        private final int projectId;
+        private final int stepId;
+        private final long enqueued;
+        private final boolean exportImages;
+        private final boolean exportFulltext;
+        private final String destination;
+
+        private Job(Path file, int processId, int projectId, int stepId, long enqueued, boolean exportImages, boolean exportFulltext,
+                String destination) {
+            this.file = file;
+            this.processId = processId;
+            this.projectId = projectId;
+            this.stepId = stepId;
+            this.enqueued = enqueued;
+            this.exportImages = exportImages;
+            this.exportFulltext = exportFulltext;
+            this.destination = destination;
+        }
+
+        private static Job read(Path file) throws IOException {
+            String[] fields = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split("\t", 7);
+            if (fields.length != 7) {
+                throw new IOException("expected 7 fields, found " + fields.length);
+            }
+            return new Job(file, Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Long.parseLong(fields[3]),
+                    Boolean.parseBoolean(fields[4]), Boolean.parseBoolean(fields[5]), fields[6]);
+        }
+
+        /**
+         * Writes the job file; it only appears under its final name once it is complete.
+         *
+         * @throws IOException
+         */
+        private void save() throws IOException {
+            String line = processId + "\t" + projectId + "\t" + stepId + "\t" + enqueued + "\t" + exportImages + "\t" + exportFulltext + "\t"
+                    + destination + "\n";
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tempFile, line.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
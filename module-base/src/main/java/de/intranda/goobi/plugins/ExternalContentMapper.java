@@ -0,0 +1,136 @@
+package de.intranda.goobi.plugins;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Maps local files to the URIs under which Fedora can read them, so binaries can be created as external content instead of being uploaded. This
+ * requires that the Goobi folders are on storage Fedora can access as well, e.g. a shared NFS or CephFS volume.
+ * <p>
+ * Mappings are given as "local path=Fedora location". The Fedora location is either a URI (e.g. "file:///mnt/goobi/metadata" or
+ * "https://images.example.org/metadata") or a path on the Fedora host, which is turned into a file URI. The longest matching local path is used;
+ * files outside of all mappings are uploaded as usual.
+ */
+public class ExternalContentMapper {
+
+    private static final Logger log = Logger.getLogger(ExternalContentMapper.class);
+
+    /** Relation of the "Link" header that marks a request as external content */
+    public static final String EXTERNAL_CONTENT = "http://fedora.info/definitions/fcrepo#ExternalContent";
+
+    private final String handling;
+    private final List<Mapping> mappings = new ArrayList<>();
+
+    private ExternalContentMapper(String handling) {
+        this.handling = handling;
+    }
+
+    /**
+     * @param handling Handling of the external content by Fedora: copy, proxy or redirect; any other value disables external content
+     * @param definitions Mappings in the form "local path=Fedora location"
+     * @return Mapper, or null if external content is not used
+     */
+    public static ExternalContentMapper create(String handling, String[] definitions) {
+        String value = handling == null ? "none" : handling.trim().toLowerCase(Locale.ENGLISH);
+        switch (value) {
+            case "copy":
+            case "proxy":
+            case "redirect":
+                break;
+            case "none":
+                return null;
+            default:
+                log.warn("Unknown external content handling ignored, files are uploaded: " + handling);
+                return null;
+        }
+        ExternalContentMapper mapper = new ExternalContentMapper(value);
+        if (definitions != null) {
+            for (String definition : definitions) {
+                int index = definition.indexOf('=');
+                if (index <= 0 || index == definition.length() - 1) {
+                    log.warn("Invalid external path mapping ignored: " + definition);
+                    continue;
+                }
+                String location = definition.substring(index + 1).trim();
+                if (!isUri(location)) {
+                    location = Paths.get(location).toUri().toString();
+                }
+                if (!location.endsWith("/")) {
+                    location = location + "/";
+                }
+                mapper.mappings.add(new Mapping(Paths.get(definition.substring(0, index).trim()).toAbsolutePath().normalize(), location));
+            }
+        }
+        if (mapper.mappings.isEmpty()) {
+            log.warn("External content is configured without a valid externalPath mapping, files are uploaded");
+            return null;
+        }
+        // the most specific mapping wins
+        mapper.mappings.sort(Comparator.comparingInt((Mapping m) -> m.localPath.getNameCount()).reversed());
+        return mapper;
+    }
+
+    /**
+     * @param file Local file
+     * @return URI under which Fedora can read the file, or null if the file is not below a mapped path
+     */
+    public URI getUri(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        for (Mapping mapping : mappings) {
+            if (path.startsWith(mapping.localPath)) {
+                StringBuilder sb = new StringBuilder(mapping.location);
+                Path relative = mapping.localPath.relativize(path);
+                for (int i = 0; i < relative.getNameCount(); i++) {
+                    if (i > 0) {
+                        sb.append('/');
+                    }
+                    sb.append(encode(relative.getName(i).toString()));
+                }
+                return URI.create(sb.toString());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param uri Location of the content
+     * @param mimeType Mime type of the content
+     * @return Value of the "Link" header that creates a binary with the given external content
+     */
+    public String getLinkHeader(URI uri, String mimeType) {
+        return "<" + uri + ">; rel=\"" + EXTERNAL_CONTENT + "\"; handling=\"" + handling + "\"; type=\"" + mimeType + "\"";
+    }
+
+    private static boolean isUri(String location) {
+        // Windows drive letters are no URI schemes
+        return location.matches("[a-zA-Z][a-zA-Z0-9+.-]+:.*");
+    }
+
+    private static String encode(String segment) {
+        try {
+            // the leading slash keeps a colon in the segment from being taken as a scheme
+            return new URI(null, null, "/" + segment, null).getRawPath().substring(1).replace(":", "%3A");
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static class Mapping {
+
+        private final Path localPath;
+        private final String location;
+
+        private Mapping(Path localPath, String location) {
+            this.localPath = localPath;
+            this.location = location;
+        }
+    }
+}
@@ -0,0 +1,726 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Plugin-wide HTTP client for all requests against Fedora. The underlying connection pool is shared between all exports running in the JVM, so
+ * connections (including TLS sessions) are kept alive and reused between files and exports.
+ * <p>
+ * Two transports are available: the pooled Apache HTTP client (HTTP/1.1, one connection and one thread per request in flight), and the
+ * non-blocking java.net.http client, which uses HTTP/2 where Fedora's servlet container supports it and multiplexes all requests over few
+ * connections. With the non-blocking transport, {@link #sendAsync(String, String, Path, String, String...)} returns as soon as the request is sent;
+ * with the Apache transport the request is executed by the calling thread and the returned future is already completed.
+ * <p>
+ * Clients returned by {@link #withRetryPolicy(RetryPolicy)} send requests again after transient failures, with a growing delay, and stop sending
+ * requests to a Fedora host for a while if it keeps failing (see {@link CircuitBreaker}).
+ * <p>
+ * Instances are obtained with {@link #acquire(Settings)} and handed back with {@link #close()}. If the pool settings change in the plugin
+ * configuration, a new pool is created for new exports and the old pool is shut down as soon as the last export using it has finished.
+ */
+public class FedoraClient implements Closeable {
+
+    private static final Logger log = Logger.getLogger(FedoraClient.class);
+
+    private static SharedPool currentPool;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(FedoraClient::shutdown, "fedora-client-shutdown"));
+    }
+
+    private final SharedPool pool;
+    private final ExportMetrics metrics;
+    private final RetryPolicy retryPolicy;
+    private boolean closed = false;
+
+    private FedoraClient(SharedPool pool, ExportMetrics metrics, RetryPolicy retryPolicy, boolean closed) {
+        this.pool = pool;
+        this.metrics = metrics;
+        this.retryPolicy = retryPolicy;
+        this.closed = closed;
+    }
+
+    /**
+     * Returns a client using the shared connection pool for the given settings. The returned client must be closed after use.
+     *
+     * @param settings Pool and timeout settings
+     * @return
+     */
+    public static synchronized FedoraClient acquire(Settings settings) {
+        if (currentPool == null || !currentPool.settings.equals(settings)) {
+            SharedPool oldPool = currentPool;
+            currentPool = new SharedPool(settings);
+            if (oldPool != null) {
+                oldPool.retired = true;
+                oldPool.closeIfUnused();
+            }
+        }
+        currentPool.users++;
+        return new FedoraClient(currentPool, null, null, false);
+    }
+
+    /**
+     * Returns a client that uses the same connection pool and counts all responses in the given metrics. The returned client does not need to be
+     * closed; the pool stays in use until this client is closed.
+     *
+     * @param exportMetrics
+     * @return
+     */
+    public FedoraClient withMetrics(ExportMetrics exportMetrics) {
+        return new FedoraClient(pool, exportMetrics, retryPolicy, true);
+    }
+
+    /**
+     * Returns a client that uses the same connection pool and repeats requests after transient failures according to the given policy. The
+     * returned client does not need to be closed.
+     *
+     * @param policy
+     * @return
+     */
+    public FedoraClient withRetryPolicy(RetryPolicy policy) {
+        return new FedoraClient(pool, metrics, policy, true);
+    }
+
+    /**
+     * @return Metrics the responses are counted in, or null
+     */
+    public ExportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Closes the shared connection pool, e.g. when the JVM shuts down.
+     */
+    public static synchronized void shutdown() {
+        if (currentPool != null) {
+            currentPool.retired = true;
+            currentPool.users = 0;
+            currentPool.closeIfUnused();
+            currentPool = null;
+        }
+    }
+
+    /**
+     * Hands the client back to the shared pool. Connections stay open for other exports.
+     */
+    @Override
+    public void close() {
+        synchronized (FedoraClient.class) {
+            if (!closed) {
+                closed = true;
+                pool.users--;
+                pool.closeIfUnused();
+            }
+        }
+    }
+
+    /**
+     * @return true if requests are sent without blocking (java.net.http transport)
+     */
+    public boolean isAsync() {
+        return pool.asyncClient != null;
+    }
+
+    public FedoraResponse get(String url, boolean readBody, String... headers) throws IOException {
+        return await(send("GET", url, null, readBody, headers));
+    }
+
+    public FedoraResponse head(String url, String... headers) throws IOException {
+        return await(send("HEAD", url, null, false, headers));
+    }
+
+    public FedoraResponse delete(String url) throws IOException {
+        return await(send("DELETE", url, null, false));
+    }
+
+    /**
+     * Sends a POST request.
+     *
+     * @param url
+     * @param entity Request body or null; it has to be repeatable, so the request can be sent again
+     * @param headers Header names and values in alternating order
+     * @return
+     * @throws IOException
+     */
+    public FedoraResponse post(String url, HttpEntity entity, String... headers) throws IOException {
+        return await(send("POST", url, entity, false, headers));
+    }
+
+    /**
+     * Sends a PUT request. A PUT without entity creates a container in Fedora, while an empty entity would create an empty binary.
+     *
+     * @param url
+     * @param entity Request body or null; it has to be repeatable, so the request can be sent again
+     * @param headers Header names and values in alternating order
+     * @return
+     * @throws IOException
+     */
+    public FedoraResponse put(String url, HttpEntity entity, String... headers) throws IOException {
+        return await(send("PUT", url, entity, false, headers));
+    }
+
+    /**
+     * Sends a request with the given file as body (or without body), without waiting for the response if the non-blocking transport is used. The
+     * response body is only read if the request failed.
+     *
+     * @param method HTTP method
+     * @param url
+     * @param file Request body or null
+     * @param contentType Mime type of the file
+     * @param headers Header names and values in alternating order
+     * @return Future of the response; it completes exceptionally with an IOException if the request could not be sent
+     */
+    public CompletableFuture<FedoraResponse> sendAsync(String method, String url, Path file, String contentType, String... headers) {
+        HttpEntity entity = null;
+        if (file != null) {
+            try {
+                entity = new FileChannelEntity(file, contentType);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        return send(method, url, entity, false, headers);
+    }
+
+    /**
+     * Sends the request with the transport of the pool, repeating it after transient failures as far as the retry policy allows.
+     *
+     * @param method
+     * @param url
+     * @param entity Request body or null
+     * @param readBody
+     * @param headers Header names and values in alternating order
+     * @return
+     */
+    private CompletableFuture<FedoraResponse> send(String method, String url, HttpEntity entity, boolean readBody, String... headers) {
+        if (isAsync()) {
+            return sendWithRetry(method, url, entity, readBody, headers, 0);
+        }
+        try {
+            return CompletableFuture.completedFuture(executeWithRetry(method, url, entity, readBody, headers));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Sends the request with the Apache client; the calling thread waits between the attempts.
+     */
+    private FedoraResponse executeWithRetry(String method, String url, HttpEntity entity, boolean readBody, String... headers) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            CircuitBreaker breaker = getCircuitBreaker(url);
+            boolean trial = breaker != null && breaker.acquire();
+            FedoraResponse response = null;
+            IOException error = null;
+            long delay;
+            try {
+                try {
+                    RequestBuilder builder = RequestBuilder.create(method).setUri(url);
+                    if (entity != null) {
+                        builder.setEntity(entity);
+                    }
+                    response = execute((HttpRequestBase) builder.build(), readBody, headers);
+                } catch (IOException e) {
+                    error = e;
+                }
+                delay = getRetryDelay(method, url, response, error, attempt, breaker);
+                trial = false;
+            } finally {
+                // a request that failed with a runtime exception has no outcome; a trial must not keep the breaker open for good
+                if (trial) {
+                    breaker.release();
+                }
+            }
+            if (delay < 0) {
+                if (error != null) {
+                    throw error;
+                }
+                return response;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send a request to Fedora again");
+            }
+        }
+    }
+
+    /**
+     * Sends the request with the java.net.http client; the next attempt is scheduled without blocking a thread.
+     */
+    private CompletableFuture<FedoraResponse> sendWithRetry(String method, String url, HttpEntity entity, boolean readBody, String[] headers,
+            int attempt) {
+        CircuitBreaker breaker = getCircuitBreaker(url);
+        boolean trial;
+        CompletableFuture<FedoraResponse> request;
+        try {
+            trial = breaker != null && breaker.acquire();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            request = executeAsync(method, url, entity, readBody, headers);
+        } catch (RuntimeException e) {
+            if (trial) {
+                breaker.release();
+            }
+            throw e;
+        }
+        return request.handle((response, e) -> {
+            IOException error;
+            try {
+                error = e == null ? null : unwrap(e);
+            } catch (RuntimeException runtime) {
+                // a runtime exception is no outcome of the request; a trial must not keep the breaker open for good
+                if (trial) {
+                    breaker.release();
+                }
+                throw runtime;
+            }
+            long delay = getRetryDelay(method, url, response, error, attempt, breaker);
+            if (delay < 0) {
+                return error != null ? CompletableFuture.<FedoraResponse> failedFuture(error) : CompletableFuture.completedFuture(response);
+            }
+            Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> sendWithRetry(method, url, entity, readBody, headers, attempt + 1), delayed)
+                    .thenCompose(next -> next);
+        }).thenCompose(result -> result);
+    }
+
+    /**
+     * Transaction control requests (begin, refresh, commit and rollback) are not subject to the circuit breaker: an open transaction must still be
+     * kept alive, committed or rolled back while uploads are suspended.
+     *
+     * @param url
+     * @return Circuit breaker of the Fedora host, or null if none is used for the request
+     */
+    private CircuitBreaker getCircuitBreaker(String url) {
+        if (retryPolicy == null || isTransactionControl(url)) {
+            return null;
+        }
+        return retryPolicy.getCircuitBreaker(url);
+    }
+
+    /**
+     * @param url
+     * @return true if the URL creates, refreshes, commits or rolls back a transaction
+     */
+    static boolean isTransactionControl(String url) {
+        String path = URI.create(url).getPath();
+        return path != null && (path.endsWith("/fcr:tx") || path.endsWith("/fcr:tx/fcr:commit") || path.endsWith("/fcr:tx/fcr:rollback"));
+    }
+
+    /**
+     * Records the outcome of an attempt in the circuit breaker and decides whether it is repeated.
+     *
+     * @param method
+     * @param url
+     * @param response Response, or null if the request failed
+     * @param error Exception the request failed with, or null
+     * @param attempt Number of the attempt, starting with 0
+     * @param breaker
+     * @return Delay in milliseconds before the next attempt, or -1 if the request is not repeated
+     */
+    private long getRetryDelay(String method, String url, FedoraResponse response, IOException error, int attempt, CircuitBreaker breaker) {
+        if (retryPolicy == null) {
+            return -1;
+        }
+        boolean failed = error != null ? retryPolicy.isTransient(error) : retryPolicy.isTransient(response.getStatus());
+        if (breaker != null) {
+            breaker.record(!failed);
+        }
+        if (!failed || attempt >= retryPolicy.getMaxRetries()
+                || !(error != null ? retryPolicy.isRetryable(method, error) : retryPolicy.isRetryable(method, response.getStatus()))) {
+            return -1;
+        }
+        long delay = retryPolicy.getDelayMillis(attempt, response == null ? null : response.getHeader("retry-after"));
+        log.warn(method + " " + url + " failed (" + (error != null ? error.toString() : response.getStatus() + " " + response.getReasonPhrase())
+                + "), attempt " + (attempt + 2) + " of " + (retryPolicy.getMaxRetries() + 1) + " in " + delay + " ms");
+        if (metrics != null) {
+            metrics.increment(ExportMetrics.RETRIES);
+        }
+        return delay;
+    }
+
+    /**
+     * Waits for the given future and unwraps the exception it failed with.
+     *
+     * @param future
+     * @return
+     * @throws IOException
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new InterruptedIOException("Interrupted while waiting for Fedora");
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the IOException wrapped by the given exception of a future, or wraps other exceptions in an IOException.
+     *
+     * @param e
+     * @return
+     */
+    static IOException unwrap(Throwable e) {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException || cause instanceof UncheckedIOException)
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Executes the given request and consumes the response, so that the connection is returned to the pool. The response body is only read if
+     * requested or if the request failed.
+     *
+     * @param request
+     * @param readBody
+     * @param headers Header names and values in alternating order
+     * @return
+     * @throws IOException
+     */
+    private FedoraResponse execute(HttpRequestBase request, boolean readBody, String... headers) throws IOException {
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            request.addHeader(headers[i], headers[i + 1]);
+        }
+        try (CloseableHttpResponse response = pool.httpClient.execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            if (metrics != null) {
+                metrics.countStatus(status);
+            }
+            Map<String, String> responseHeaders = new HashMap<>();
+            for (Header header : response.getAllHeaders()) {
+                responseHeaders.putIfAbsent(header.getName().toLowerCase(Locale.ENGLISH), header.getValue());
+            }
+            String body = null;
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                if (readBody || status >= 300) {
+                    body = EntityUtils.toString(entity, StandardCharsets.UTF_8);
+                } else {
+                    EntityUtils.consume(entity);
+                }
+            }
+            return new FedoraResponse(status, response.getStatusLine().getReasonPhrase(), responseHeaders, body);
+        }
+    }
+
+    private static String getContentType(HttpEntity entity) {
+        return entity == null || entity.getContentType() == null ? null : entity.getContentType().getValue();
+    }
+
+    /**
+     * Files are sent from the file system; the body of other entities is read from their content stream, without a Content-Length. The client
+     * does not close a content stream it stops reading, e.g. after an error response or a reset connection, so the opened streams are collected
+     * and closed by the caller once the request is complete.
+     *
+     * @param entity Request body or null
+     * @param openedStreams Content streams opened for the body, one per attempt of the client
+     * @return
+     * @throws FileNotFoundException
+     */
+    private static HttpRequest.BodyPublisher getBodyPublisher(HttpEntity entity, List<InputStream> openedStreams) throws FileNotFoundException {
+        if (entity == null) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        if (entity instanceof FileChannelEntity) {
+            return HttpRequest.BodyPublishers.ofFile(((FileChannelEntity) entity).getFile());
+        }
+        return HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                InputStream in = entity.getContent();
+                openedStreams.add(in);
+                return in;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Sends the request with the java.net.http client.
+     *
+     * @param method
+     * @param url
+     * @param entity Request body or null
+     * @param readBody
+     * @param headers Header names and values in alternating order
+     * @return
+     */
+    private CompletableFuture<FedoraResponse> executeAsync(String method, String url, HttpEntity entity, boolean readBody, String... headers) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url)).expectContinue(entity != null && pool.settings.expectContinue);
+        List<InputStream> openedStreams = new CopyOnWriteArrayList<>();
+        try {
+            builder.method(method, getBodyPublisher(entity, openedStreams));
+        } catch (FileNotFoundException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (entity != null) {
+            builder.header("Content-Type", getContentType(entity));
+        } else {
+            // uploads may take longer than the socket timeout, all other requests are small
+            builder.timeout(Duration.ofSeconds(pool.settings.socketTimeout));
+        }
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            builder.header(headers[i], headers[i + 1]);
+        }
+        // The body is discarded unless it is needed, so the connection can be reused right away
+        HttpResponse.BodyHandler<String> bodyHandler = info -> readBody || info.statusCode() >= 300
+                ? HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)
+                : HttpResponse.BodySubscribers.replacing(null);
+        return pool.asyncClient.sendAsync(builder.build(), bodyHandler).whenComplete((response, e) -> {
+            // stops a body that is written by another thread, e.g. a BagIt package, if the client did not read it to the end
+            for (InputStream in : openedStreams) {
+                try {
+                    in.close();
+                } catch (IOException e1) {
+                    log.debug("Request body of " + url + " could not be closed: " + e1.getMessage());
+                }
+            }
+        }).thenApply(response -> {
+            int status = response.statusCode();
+            if (metrics != null) {
+                metrics.countStatus(status);
+            }
+            Map<String, String> responseHeaders = new HashMap<>();
+            for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+                if (!header.getValue().isEmpty()) {
+                    responseHeaders.putIfAbsent(header.getKey().toLowerCase(Locale.ENGLISH), header.getValue().get(0));
+                }
+            }
+            return new FedoraResponse(status, getReasonPhrase(status), responseHeaders, response.body());
+        });
+    }
+
+    /**
+     * HTTP/2 has no reason phrases, so the common ones are added for log messages.
+     */
+    private static String getReasonPhrase(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 204:
+                return "No Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 409:
+                return "Conflict";
+            case 410:
+                return "Gone";
+            case 412:
+                return "Precondition Failed";
+            case 500:
+                return "Internal Server Error";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Appends the given path segments to the base URL. Each segment is percent-encoded, so file names with spaces or other reserved characters
+     * produce valid URLs.
+     *
+     * @param base
+     * @param segments
+     * @return
+     */
+    public static String path(String base, String... segments) {
+        StringBuilder sb = new StringBuilder(base);
+        for (String segment : segments) {
+            if (sb.length() > 0 && sb.charAt(sb.length() - 1) != '/') {
+                sb.append('/');
+            }
+            sb.append(encodeSegment(segment));
+        }
+        return sb.toString();
+    }
+
+    private static String encodeSegment(String segment) {
+        StringBuilder sb = new StringBuilder(segment.length());
+        for (byte b : segment.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~!$&'()*+,;=:@".indexOf(c) >= 0) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Connection pool together with the number of exports currently using it.
+     */
+    private static class SharedPool {
+
+        private final Settings settings;
+        private final CloseableHttpClient httpClient;
+        private final java.net.http.HttpClient asyncClient;
+        private int users = 0;
+        private boolean retired = false;
+
+        private SharedPool(Settings settings) {
+            this.settings = settings;
+            if (settings.http2) {
+                // HTTP/2 is negotiated with ALPN for https and with an upgrade for plain http; HTTP/1.1 is used if the server does not support it
+                asyncClient = java.net.http.HttpClient.newBuilder()
+                        .version(java.net.http.HttpClient.Version.HTTP_2)
+                        .connectTimeout(Duration.ofSeconds(settings.connectTimeout))
+                        .followRedirects(java.net.http.HttpClient.Redirect.NEVER)
+                        .build();
+                httpClient = null;
+                log.debug("Created Fedora HTTP/2 client: " + settings);
+                return;
+            }
+            asyncClient = null;
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(settings.maxConnections);
+            connectionManager.setDefaultMaxPerRoute(settings.maxConnectionsPerRoute);
+            connectionManager.setValidateAfterInactivity(2000);
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(settings.connectTimeout * 1000)
+                    .setConnectionRequestTimeout(settings.connectTimeout * 1000)
+                    .setSocketTimeout(settings.socketTimeout * 1000)
+                    // only used for requests with a body: Fedora can reject an upload before it is sent
+                    .setExpectContinueEnabled(settings.expectContinue)
+                    .build();
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .setKeepAliveStrategy((response, context) -> {
+                        // Use the keep-alive duration sent by the server, if any
+                        long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return duration > 0 ? duration : settings.keepAliveSeconds * 1000L;
+                    })
+                    .evictExpiredConnections()
+                    .evictIdleConnections(settings.idleConnectionTimeout, TimeUnit.SECONDS)
+                    .build();
+            log.debug("Created Fedora connection pool: " + settings);
+        }
+
+        private void closeIfUnused() {
+            if (retired && users <= 0 && httpClient != null) {
+                try {
+                    httpClient.close();
+                    log.debug("Closed Fedora connection pool: " + settings);
+                } catch (IOException e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Settings of the shared connection pool. All durations are given in seconds.
+     */
+    public static class Settings {
+
+        private final int maxConnections;
+        private final int maxConnectionsPerRoute;
+        private final int keepAliveSeconds;
+        private final int idleConnectionTimeout;
+        private final int connectTimeout;
+        private final int socketTimeout;
+        private final boolean expectContinue;
+        private final boolean http2;
+
+        /**
+         * @param maxConnections
+         * @param maxConnectionsPerRoute
+         * @param keepAliveSeconds
+         * @param idleConnectionTimeout
+         * @param connectTimeout
+         * @param socketTimeout
+         * @param expectContinue
+         * @param http2 Use the non-blocking java.net.http transport instead of the Apache connection pool
+         */
+        public Settings(int maxConnections, int maxConnectionsPerRoute, int keepAliveSeconds, int idleConnectionTimeout, int connectTimeout,
+                int socketTimeout, boolean expectContinue, boolean http2) {
+            this.maxConnections = maxConnections;
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            this.keepAliveSeconds = keepAliveSeconds;
+            this.idleConnectionTimeout = idleConnectionTimeout;
+            this.connectTimeout = connectTimeout;
+            this.socketTimeout = socketTimeout;
+            this.expectContinue = expectContinue;
+            this.http2 = http2;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) obj;
+            return maxConnections == other.maxConnections && maxConnectionsPerRoute == other.maxConnectionsPerRoute
+                    && keepAliveSeconds == other.keepAliveSeconds && idleConnectionTimeout == other.idleConnectionTimeout
+                    && connectTimeout == other.connectTimeout && socketTimeout == other.socketTimeout && expectContinue == other.expectContinue
+                    && http2 == other.http2;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(maxConnections, maxConnectionsPerRoute, keepAliveSeconds, idleConnectionTimeout, connectTimeout, socketTimeout,
+                    expectContinue, http2);
+        }
+
+        @Override
+        public String toString() {
+            return "maxConnections=" + maxConnections + ", maxConnectionsPerRoute=" + maxConnectionsPerRoute + ", keepAliveSeconds="
+                    + keepAliveSeconds + ", idleConnectionTimeout=" + idleConnectionTimeout + ", connectTimeout=" + connectTimeout
+                    + ", socketTimeout=" + socketTimeout + ", expectContinue=" + expectContinue + ", http2=" + http2;
+        }
+    }
+}
@@ -0,0 +1,1761 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+import org.goobi.beans.Process;
+import org.goobi.production.enums.LogType;
+
+import de.sub.goobi.helper.Helper;
+import de.sub.goobi.helper.NIOFileUtils;
+import de.sub.goobi.helper.VariableReplacer;
+import de.sub.goobi.helper.exceptions.DAOException;
+import de.sub.goobi.helper.exceptions.SwapException;
+import de.sub.goobi.metadaten.MetadatenHelper;
+import de.sub.goobi.metadaten.MetadatenImagesHelper;
+import de.sub.goobi.persistence.managers.MetadataManager;
+import ugh.dl.DigitalDocument;
+import ugh.dl.ExportFileformat;
+import ugh.dl.Fileformat;
+import ugh.dl.Prefs;
+import ugh.dl.VirtualFileGroup;
+import ugh.exceptions.UGHException;
+
+/**
+ * Ingest of a single Goobi process into Fedora. All state of the export is kept in this object, so several processes can be exported at the same
+ * time; a new instance has to be created for each export.
+ */
+public class FedoraIngest {
+
+    private static final Logger log = Logger.getLogger(FedoraIngest.class);
+
+    private static final String DIGEST_CACHE_FILE = "fedora_digests.txt";
+
+    private static final String JOURNAL_FILE = "fedora_journal.txt";
+    /** Number of times an upload is repeated after Fedora reported a digest mismatch */
+    private static final int DIGEST_RETRIES = 2;
+
+    /** Folders whose files the PRESENTATION file group refers to, in order of preference */
+    private static final List<String> PRESENTATION_FOLDERS = Arrays.asList("master", "media");
+
+    /** Container of the OCR results */
+    private static final String FULLTEXT = "fulltext";
+
+    private final Process process;
+    private final ExportConfiguration config;
+    private final FedoraClient client;
+    private final MimeTypeResolver mimeTypes;
+    private final ExportMetrics metrics;
+    private final ContainerManager containers;
+    private final UploadThrottle throttle;
+    private final UploadThrottle fulltextThrottle;
+    /** Mapping of local files to Fedora-visible locations, or null if all files are uploaded */
+    private final ExternalContentMapper externalContent;
+
+    /** Fedora URLs of the ingested files by folder and name, for the rewrite of the METS file */
+    private final IngestManifest manifest;
+    private final ThroughputHistory history;
+
+    private String fedoraUrl;
+    private String identifier;
+    /** Path segments of the record container below the REST endpoint */
+    private String[] recordPath;
+    private FedoraTransaction transaction;
+    private String transactionUrl;
+    private String version;
+    private DigestCache digestCache;
+    private IngestJournal journal;
+    private int committedFiles = 0;
+    private boolean exportImages = true;
+    private boolean exportFulltext = false;
+
+    /**
+     * @param process Process to export, or null for an ingest of prepared folders without Goobi (see
+     *            {@link #ingest(String, Path, Path, Path, Map, MetsFileWriter, String)}); errors are then only logged
+     * @param config Plugin configuration
+     * @param client HTTP client; it is not closed by the ingest
+     */
+    public FedoraIngest(Process process, ExportConfiguration config, FedoraClient client) {
+        this.process = process;
+        this.config = config;
+        this.metrics = new ExportMetrics(ExportMetrics.getGlobal());
+        this.client = client.withMetrics(metrics).withRetryPolicy(config.getRetryPolicy());
+        this.fedoraUrl = config.getFedoraUrl();
+        this.mimeTypes = new MimeTypeResolver(config.getMimeTypeMappings());
+        this.containers = new ContainerManager(this.client, metrics, fedoraUrl, config.getContainerCacheSeconds());
+        this.throttle = new UploadThrottle(config, metrics);
+        this.fulltextThrottle = new UploadThrottle(config, metrics, config.getFulltextUploadThreads());
+        this.externalContent = ExternalContentMapper.create(config.getExternalContent(), config.getExternalPaths());
+        this.manifest = new IngestManifest(config.getManifestMemoryEntries(), null);
+        this.history = ThroughputHistory.create(config);
+    }
+
+    /**
+     * @param exportImages If false, the master and media images are not ingested, as requested by Goobi
+     */
+    public void setExportImages(boolean exportImages) {
+        this.exportImages = exportImages;
+    }
+
+    /**
+     * @param exportFulltext If true, the OCR results are ingested as well, if the configuration allows it
+     */
+    public void setExportFulltext(boolean exportFulltext) {
+        this.exportFulltext = exportFulltext;
+    }
+
+    /**
+     * @return Metrics of this ingest
+     */
+    ExportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Ingests the process into Fedora. If versioning is used, new versions of the existing resources will be added; otherwise the resource will be
+     * deleted and created anew (all previous versions will be deleted).
+     * <p>
+     * By default the entire process is ingested in a single transaction. In chunked mode, the container hierarchy, each chunk of files and finally
+     * the METS file are committed in separate transactions, so the record is only complete once the METS file has been committed.
+     *
+     * @param destination Export folder for the METS file
+     * @return true if the ingest was successful
+     */
+    public boolean run(String destination) {
+        boolean success = false;
+        try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.EXPORT)) {
+            success = ingest(destination);
+        } finally {
+            metrics.increment(success ? ExportMetrics.EXPORTS_SUCCEEDED : ExportMetrics.EXPORTS_FAILED);
+            // Successful exports are the basis for the duration estimates of planned exports
+            if (success && history != null) {
+                history.record(metrics.getUploadedBytes(), metrics.getRequestCount(), metrics.getElapsedMillis());
+            }
+            // Compact summary of timings and throughput, the full histograms are available through JMX
+            String summary = metrics.getSummary();
+            log.info(process.getTitel() + ": " + summary);
+            Helper.addMessageToProcessLog(process.getId(), LogType.DEBUG, summary);
+        }
+        return success;
+    }
+
+    private boolean ingest(String destination) {
+        String recordIdentifier = MetadataManager.getMetadataValue(process.getId(), "CatalogIDDigital");
+        Path processDirectory;
+        Path masterFolder;
+        Path mediaFolder;
+        Map<String, Path> fulltextFolders;
+        try {
+            processDirectory = Paths.get(process.getProcessDataDirectory());
+            masterFolder = isIngestMasterImages() ? Paths.get(process.getImagesOrigDirectory(false)) : null;
+            mediaFolder = isIngestMediaImages() ? Paths.get(process.getImagesTifDirectory(false)) : null;
+            fulltextFolders = isIngestFulltext() ? getFulltextFolders() : null;
+        } catch (IOException | DAOException | InterruptedException | SwapException e) {
+            log.error(e.getMessage(), e);
+            reportError("The ingest into Fedora was not successful: " + e.getMessage());
+            return false;
+        }
+        // Create METS file in the process folder once the images are ingested, as it refers to their Fedora URLs
+        MetsFileWriter metsWriter = null;
+        if (config.isExportMetsFile() || config.isIngestMetsFile()) {
+            metsWriter = () -> createMetsFile(processDirectory.toString());
+        }
+        if (!ingest(recordIdentifier, processDirectory, masterFolder, mediaFolder, fulltextFolders, metsWriter, destination)) {
+            return false;
+        }
+        Helper.addMessageToProcessLog(process.getId(), LogType.INFO, "Ingest into Fedora successfully finished.");
+        Helper.setMeldung(null, process.getTitel() + ": ", "ExportFinished");
+        return true;
+    }
+
+    /**
+     * Ingests the given folders and the METS file into the record container. This is the sequence of requests of every export: transaction,
+     * containers, master, media and fulltext uploads, METS file and commit. It is used for Goobi processes as well as by the load test for
+     * prepared folders. Errors are reported in the process log, if there is a process, and end the ingest.
+     *
+     * @param recordIdentifier Identifier of the record
+     * @param processDirectory Folder of the journal and the digest cache
+     * @param masterFolder Folder of the master images, or null if they are not ingested
+     * @param mediaFolder Folder of the media images, or null if they are not ingested
+     * @param fulltextFolders Folders of the OCR results by their name in the archive, or null if the fulltext is not ingested
+     * @param metsWriter Creates the METS file after the uploads, or null if it is neither ingested nor exported
+     * @param destination Export folder for the METS file, or null if it is not exported
+     * @return true if the ingest was successful
+     */
+    boolean ingest(String recordIdentifier, Path processDirectory, Path masterFolder, Path mediaFolder, Map<String, Path> fulltextFolders,
+            MetsFileWriter metsWriter, String destination) {
+        identifier = recordIdentifier;
+        recordPath = ContainerManager.getRecordPath(identifier, config.getRecordLayout(), config.getShardLevels());
+
+        // The journal lets this export continue where an interrupted export of the same record stopped
+        if (config.isResumeIngest()) {
+            try {
+                journal = new IngestJournal(processDirectory.resolve(JOURNAL_FILE), FedoraClient.path(fedoraUrl, recordPath));
+            } catch (IOException e) {
+                log.warn("Ingest journal could not be opened, all files will be uploaded: " + e.getMessage(), e);
+            }
+        }
+
+        // Create a new transaction in Fedora (POST operation), which is kept alive in the background until it is finished
+        try {
+            beginTransaction();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            reportError("The ingest into Fedora was not successful (transaction creation failed): " + e.getMessage(),
+                    "The ingest into Fedora was not successful as the transaction could not be created: " + e.getMessage());
+            closeResources();
+            return false;
+        }
+        try {
+            // If not using versioning remove resource prior to ingesting to speed things up, unless files committed before shall be kept or the
+            // record is updated in place
+            if (!config.isUseVersioning() && !config.isDiffReplace() && (journal == null || !journal.isResuming())) {
+                String recordContainer = getRecordUrl();
+                ContainerManager.evict(toFedoraUrl(recordContainer));
+                if (!deleteResource(recordContainer)) {
+                    return false;
+                }
+            }
+            // Create the required container hierarchy for the process identifier
+            String failedContainer = createContainers(masterFolder != null, mediaFolder != null, fulltextFolders != null);
+            if (failedContainer != null) {
+                reportError("The ingest into Fedora was not successful (container creation for " + failedContainer + ")",
+                        "The ingest into Fedora was not successful as the container could not be created for " + failedContainer);
+                return false;
+            }
+
+            // Name for the new version, if using versioning
+            version = config.isUseVersioning() ? "goobi-export." + FedoraExportPlugin.formatter.print(System.currentTimeMillis()) : null;
+
+            try {
+                // In chunked mode the container hierarchy is committed on its own, the files follow in separate transactions
+                if (config.isChunkedIngest()) {
+                    commitTransaction();
+                }
+                // Without versioning the record was usually deleted above, so there is nothing to compare against
+                if (config.isCompareDigests() || config.isSendDigest()) {
+                    openDigestCache(processDirectory);
+                }
+
+                // if master images shall be ingested do it
+                if (masterFolder != null) {
+                    try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.FOLDER)) {
+                        addMasterImages(masterFolder);
+                    }
+                }
+                // if media images shall be ingested do it
+                if (mediaFolder != null) {
+                    try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.FOLDER)) {
+                        addFolderContent(mediaFolder, "media");
+                    }
+                }
+                // if the fulltext shall be ingested do it
+                if (fulltextFolders != null) {
+                    try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.FOLDER)) {
+                        addFulltext(fulltextFolders);
+                    }
+                }
+
+                // Create METS file with the Fedora URLs and add it to the repository
+                Path metsFile = null;
+                if (metsWriter != null) {
+                    try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.METS)) {
+                        metsFile = metsWriter.write();
+                    }
+                }
+                // The METS file goes last, in chunked mode in a final transaction of its own
+                if (config.isChunkedIngest()) {
+                    beginTransaction();
+                }
+                // ingest the METS file if this is configured
+                if (metsFile != null && config.isIngestMetsFile()) {
+                    addFileResource(metsFile, FedoraClient.path(getRecordUrl(), metsFile.getFileName().toString()), null);
+                }
+
+                // Finish the entire ingest by committing the transaction
+                commitTransaction();
+                if (journal != null) {
+                    journal.delete();
+                }
+
+                // At the end export the METS file to export destination (e.g. hotfolder) if this is configured
+                if (metsFile != null && destination != null && config.isExportMetsFile()) {
+                    Path pathExportMetsFile = Paths.get(destination, metsFile.getFileName().toString());
+                    linkOrCopy(metsFile, pathExportMetsFile);
+                }
+
+            } catch (IOException | UGHException | DAOException | InterruptedException | SwapException e) {
+                // Roll back transaction, if anything fails
+                log.error(e.getMessage(), e);
+                rollbackTransaction();
+                String msg = "The ingest into Fedora was not successful and the transaction got rolled back: " + e.getMessage();
+                if (config.isChunkedIngest()) {
+                    msg += " (" + committedFiles + " files were already committed in previous chunks)";
+                }
+                reportError(msg);
+                return false;
+            } finally {
+                if (digestCache != null) {
+                    digestCache.save();
+                }
+            }
+        } finally {
+            closeResources();
+        }
+        return true;
+    }
+
+    /**
+     * Stops the keep-alive and rolls back a transaction left open by an error, and closes the journal and the manifest.
+     */
+    private void closeResources() {
+        if (transaction != null) {
+            transaction.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        try {
+            manifest.close();
+        } catch (IOException e) {
+            log.warn("Manifest could not be closed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes an error to the process log and shows it to the user. Without a process, e.g. in the load test, it is only logged.
+     *
+     * @param message
+     */
+    private void reportError(String message) {
+        reportError(message, message);
+    }
+
+    /**
+     * @param logMessage Message for the process log
+     * @param userMessage Message shown to the user
+     */
+    private void reportError(String logMessage, String userMessage) {
+        if (process == null) {
+            log.error(logMessage);
+            return;
+        }
+        Helper.addMessageToProcessLog(process.getId(), LogType.ERROR, logMessage);
+        Helper.setFehlerMeldung(null, process.getTitel() + ": ", userMessage);
+    }
+
+    /**
+     * Plans the export of the process without changing anything in Fedora (dry run). The image and fulltext folders are compared with the record in
+     * Fedora and with the journal of an interrupted export; existing binaries are compared by their digest if the export would do so. The summary
+     * with the totals and the estimated duration is written to the process log.
+     *
+     * @return Plan of the export, or null if it could not be made
+     */
+    public IngestPlan plan() {
+        String identifier = MetadataManager.getMetadataValue(process.getId(), "CatalogIDDigital");
+        IngestPlan plan;
+        try {
+            Path masterFolder = isIngestMasterImages() ? Paths.get(process.getImagesOrigDirectory(false)) : null;
+            Path mediaFolder = isIngestMediaImages() ? Paths.get(process.getImagesTifDirectory(false)) : null;
+            plan = plan(identifier, Paths.get(process.getProcessDataDirectory()), masterFolder, mediaFolder,
+                    isIngestFulltext() ? getFulltextFolders() : null);
+        } catch (IOException | DAOException | InterruptedException | SwapException e) {
+            log.error(e.getMessage(), e);
+            Helper.addMessageToProcessLog(process.getId(), LogType.ERROR, "The Fedora export could not be planned: " + e.getMessage());
+            Helper.setFehlerMeldung(null, process.getTitel() + ": ", "The Fedora export could not be planned: " + e.getMessage());
+            return null;
+        }
+        String summary = plan.getSummary(history);
+        log.info(process.getTitel() + ": " + summary);
+        Helper.addMessageToProcessLog(process.getId(), LogType.INFO, summary);
+        return plan;
+    }
+
+    /**
+     * Plans the export of the given folders without changing anything in Fedora.
+     *
+     * @param recordIdentifier Identifier of the record
+     * @param processDirectory Folder of the journal and the digest cache
+     * @param masterFolder Folder of the master images, or null if they are not ingested
+     * @param mediaFolder Folder of the media images, or null if they are not ingested
+     * @param fulltextFolders Folders of the OCR results by their name in the archive, or null if the fulltext is not ingested
+     * @return Plan of the export
+     * @throws IOException
+     */
+    IngestPlan plan(String recordIdentifier, Path processDirectory, Path masterFolder, Path mediaFolder, Map<String, Path> fulltextFolders)
+            throws IOException {
+        identifier = recordIdentifier;
+        recordPath = ContainerManager.getRecordPath(identifier, config.getRecordLayout(), config.getShardLevels());
+        // Without a transaction all requests go directly to the Fedora REST endpoint, and only read requests are sent
+        transactionUrl = fedoraUrl;
+        IngestPlan plan = new IngestPlan();
+        try {
+            Path journalFile = processDirectory.resolve(JOURNAL_FILE);
+            if (config.isResumeIngest() && Files.isRegularFile(journalFile)) {
+                journal = new IngestJournal(journalFile, FedoraClient.path(fedoraUrl, recordPath));
+            }
+            if (config.isCompareDigests()) {
+                openDigestCache(processDirectory);
+            }
+            BagPackage bag = masterFolder == null ? null : createMasterPackage(masterFolder);
+            if (bag != null) {
+                plan.add(planPackage(bag, "master"));
+            } else if (masterFolder != null) {
+                plan.add(planFolder(Collections.singletonList(masterFolder), "master", true));
+            }
+            if (mediaFolder != null) {
+                plan.add(planFolder(Collections.singletonList(mediaFolder), "media", true));
+            }
+            if (fulltextFolders != null && config.isPackFulltext()) {
+                plan.add(planFulltextArchive(fulltextFolders));
+            } else if (fulltextFolders != null) {
+                plan.add(planFolder(new ArrayList<>(fulltextFolders.values()), FULLTEXT, true));
+            }
+        } finally {
+            if (digestCache != null) {
+                // the digests computed for the comparison are reused by the export
+                digestCache.save();
+            }
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * @return Throughput of earlier exports, or null if no history is kept
+     */
+    ThroughputHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Opens a new transaction; all following requests use its URL.
+     *
+     * @throws IOException
+     */
+    private void beginTransaction() throws IOException {
+        transaction = FedoraTransaction.begin(client, fedoraUrl, config.getMaxTransactions());
+        // The base URL to work with (contains the transaction ID)
+        transactionUrl = transaction.getUrl();
+    }
+
+    /**
+     * Commits the current transaction; until the next transaction is opened, requests go directly to the Fedora REST endpoint.
+     *
+     * @throws IOException
+     */
+    private void commitTransaction() throws IOException {
+        FedoraTransaction committed = transaction;
+        transaction = null;
+        transactionUrl = fedoraUrl;
+        try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.COMMIT)) {
+            committed.commit();
+        }
+        containers.commit();
+        if (journal != null) {
+            journal.recordCommit(committed.getUrl());
+        }
+    }
+
+    /**
+     * Rolls the current transaction back, if there is one.
+     */
+    private void rollbackTransaction() {
+        if (transaction != null) {
+            transaction.rollback();
+            transaction = null;
+            transactionUrl = fedoraUrl;
+        }
+        containers.rollback();
+    }
+
+    /**
+     * @return URL of the record container within the current transaction
+     */
+    private String getRecordUrl() {
+        return FedoraClient.path(transactionUrl, recordPath);
+    }
+
+    /**
+     * Creates the container hierarchy for the record (which is .../records/<record identifier>/media/). Containers along the path can be created
+     * implicitly (i.e. creating "records/PPN123/media" will also created "/records" and "/records/PPN123"), but implicitly created containers have
+     * the "pairtree" type and cannot contain binary documents. Therefore the containers for the record identifier and the image folders are created
+     * explicitly here (PUT operation without an entity), the image folders concurrently. Containers that are known to exist from an earlier export
+     * are skipped.
+     *
+     * @param master If true, the container of the master images is created
+     * @param media If true, the container of the media images is created
+     * @param fulltext If true, the container of the OCR results is created
+     * @return URL of the container that could not be created, or null
+     */
+    private String createContainers(boolean master, boolean media, boolean fulltext) {
+        List<String> folders = new ArrayList<>(3);
+        if (master) {
+            folders.add("master");
+        }
+        if (media) {
+            folders.add("media");
+        }
+        if (fulltext) {
+            folders.add(FULLTEXT);
+        }
+        return containers.ensure(transactionUrl, getRecordUrl(), folders);
+    }
+
+    private boolean isIngestMasterImages() {
+        return exportImages && config.isIngestMasterImages();
+    }
+
+    private boolean isIngestMediaImages() {
+        return exportImages && config.isIngestMediaImages();
+    }
+
+    private boolean isIngestFulltext() {
+        return exportFulltext && config.isIngestFulltext();
+    }
+
+    /**
+     * @return ALTO and plain text folders of the process, by their name in the fulltext archive
+     * @throws IOException
+     * @throws SwapException
+     */
+    private Map<String, Path> getFulltextFolders() throws IOException, SwapException {
+        Map<String, Path> folders = new LinkedHashMap<>();
+        folders.put("alto", Paths.get(process.getOcrAltoDirectory()));
+        folders.put("txt", Paths.get(process.getOcrTxtDirectory()));
+        return folders;
+    }
+
+    /**
+     * Adds the master images of the given folder to the master container, one by one or, if configured, as a single BagIt package.
+     *
+     * @param folder
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    private void addMasterImages(Path folder) throws IOException, InterruptedException, SwapException, DAOException {
+        BagPackage bag = createMasterPackage(folder);
+        if (bag == null) {
+            addFolderContent(folder, "master");
+        } else {
+            addPackage(bag, "master");
+        }
+    }
+
+    /**
+     * @param folder Folder of the master images
+     * @return Package of the master images, or null if they are not packaged
+     * @throws IOException
+     */
+    private BagPackage createMasterPackage(Path folder) throws IOException {
+        List<Path> files = Files.isDirectory(folder) ? new NIOFileUtils().listFiles(folder.toString()) : Collections.emptyList();
+        return BagPackage.create(config.getMasterPackaging(), identifier, files, config.getDigestAlgorithm());
+    }
+
+    /**
+     * Adds the OCR results of the given folders to the fulltext container. The files are small and numerous, so they are uploaded with the
+     * concurrency configured for fulltext. If the fulltext is packed, the folders are packed into a single archive with an index instead (see
+     * {@link FulltextArchive}), so the fulltext costs the same few requests however many pages the process has.
+     *
+     * @param folders Folders of the OCR results by their name in the archive; folders that do not exist are skipped
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    private void addFulltext(Map<String, Path> folders) throws IOException, InterruptedException, SwapException, DAOException {
+        if (!config.isPackFulltext()) {
+            addFolderContent(new ArrayList<>(folders.values()), FULLTEXT);
+            return;
+        }
+        Path archiveFolder = FulltextArchive.pack(folders);
+        try {
+            addFolderContent(Collections.singletonList(archiveFolder), FULLTEXT);
+        } finally {
+            FulltextArchive.delete(archiveFolder);
+        }
+    }
+
+    /**
+     * Add the entire content of a given folder into fedora and put it all under a name that is passed over as parameter label. The folder is
+     * planned first (see {@link #planFolder(List, String, boolean)}). If more than one upload thread is configured, the files are uploaded
+     * concurrently into the same transaction, the largest files first. The transaction is kept alive by {@link FedoraTransaction}, so it is not
+     * refreshed here.
+     * <p>
+     * In chunked mode the files are split into chunks by number of files and size, and each chunk is committed in its own transaction.
+     *
+     * @param folder
+     * @param label
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    public void addFolderContent(Path folder, String label) throws IOException, InterruptedException, SwapException, DAOException {
+        addFolderContent(Collections.singletonList(folder), label);
+    }
+
+    /**
+     * Adds the content of the given folders into a single container, like {@link #addFolderContent(Path, String)}.
+     *
+     * @param folders
+     * @param label
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws SwapException
+     * @throws DAOException
+     */
+    private void addFolderContent(List<Path> folders, String label) throws IOException, InterruptedException, SwapException, DAOException {
+        IngestPlan.Folder plan = planFolder(folders, label, false);
+        List<Path> filesToIngest = plan.getLocalFiles();
+        // an empty folder still has to be compared with Fedora when the record is updated in place
+        if (filesToIngest.isEmpty() && !config.isDiffReplace()) {
+            return;
+        }
+        if (!config.isChunkedIngest()) {
+            uploadFiles(filesToIngest, plan);
+        } else {
+            List<List<Path>> chunks = splitIntoChunks(filesToIngest, config.getChunkFiles(), config.getChunkBytes());
+            for (int i = 0; i < chunks.size(); i++) {
+                List<Path> chunk = chunks.get(i);
+                beginTransaction();
+                uploadFiles(chunk, plan);
+                commitTransaction();
+                committedFiles += chunk.size();
+                log.debug("Chunk " + (i + 1) + "/" + chunks.size() + " of " + label + " committed (" + chunk.size() + " files)");
+            }
+        }
+        if (config.isDiffReplace()) {
+            deleteObsoleteFiles(plan);
+        }
+    }
+
+    /**
+     * Plans the upload of the given folders into a single container: lists the local files and, with a single request, the binaries of the
+     * container in Fedora, and determines the action and the number of requests for each file. Files committed by an interrupted export are
+     * unchanged according to the journal. Whether an existing binary holds the same content is only known from a HEAD request for its digest;
+     * the export sends it right before the upload, so it is only sent here if the content shall be compared.
+     *
+     * @param folders Local folders; folders that do not exist are skipped
+     * @param label Name of the container in Fedora
+     * @param compareContent If true and digests are compared, the digests of existing binaries are requested from Fedora
+     * @return Plan of the folder
+     * @throws IOException
+     */
+    private IngestPlan.Folder planFolder(List<Path> folders, String label, boolean compareContent) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path folder : folders) {
+            if (Files.isDirectory(folder)) {
+                files.addAll(new NIOFileUtils().listFiles(folder.toString()));
+            }
+        }
+        if (files.isEmpty() && !config.isDiffReplace()) {
+            return new IngestPlan.Folder(label, null);
+        }
+        // List the existing resources once instead of checking each file separately
+        String containerUrl = FedoraClient.path(getRecordUrl(), label);
+        IngestPlan.Folder plan = new IngestPlan.Folder(label, ContainerIndex.load(client, containerUrl));
+        plan.addRequests(1);
+        ContainerIndex existingFiles = plan.getExistingFiles();
+        // Without versioning the record is deleted before the upload, unless it is updated in place or an interrupted export is continued
+        boolean recordReplaced = !config.isUseVersioning() && !config.isDiffReplace() && (journal == null || !journal.isResuming());
+        boolean compareDigests = config.isCompareDigests() && digestCache != null;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long size = Files.size(file);
+            boolean byReference = externalContent != null && externalContent.getUri(file) != null;
+            if (journal != null && journal.getCommittedUrl(label + "/" + name, file, digestCache) != null) {
+                plan.add(file, name, size, IngestPlan.Action.UNCHANGED, byReference, 0);
+            } else if (existingFiles == null) {
+                // existence is checked with a HEAD request
+                plan.add(file, name, size, IngestPlan.Action.NEW, byReference, 2);
+            } else if (!existingFiles.contains(name)) {
+                plan.add(file, name, size, IngestPlan.Action.NEW, byReference, 1);
+            } else if (recordReplaced) {
+                plan.add(file, name, size, IngestPlan.Action.CHANGED, byReference, 1);
+            } else if (compareDigests && compareContent) {
+                boolean unchanged = isUnchanged(file, FedoraClient.path(containerUrl, name));
+                plan.add(file, name, size, unchanged ? IngestPlan.Action.UNCHANGED : IngestPlan.Action.CHANGED, byReference, unchanged ? 1 : 2);
+            } else if (compareDigests) {
+                plan.add(file, name, size, IngestPlan.Action.CHANGED, byReference, 2);
+            } else {
+                // a new version, or without versioning delete, delete the tombstone and upload again
+                plan.add(file, name, size, IngestPlan.Action.CHANGED, byReference, config.isUseVersioning() ? 1 : 3);
+            }
+        }
+        if (config.isDiffReplace() && existingFiles != null) {
+            Set<String> obsolete = new TreeSet<>(existingFiles.getNames());
+            for (Path file : files) {
+                obsolete.remove(file.getFileName().toString());
+            }
+            for (String name : obsolete) {
+                // the binary and its tombstone
+                plan.add(null, name, 0, IngestPlan.Action.DELETE, false, 2);
+            }
+            if (config.isChunkedIngest() && !obsolete.isEmpty()) {
+                plan.addRequests(2);
+            }
+        }
+        if (config.isChunkedIngest()) {
+            // begin and commit of each chunk
+            plan.addRequests(2 * splitIntoChunks(files, config.getChunkFiles(), config.getChunkBytes()).size());
+        }
+        return plan;
+    }
+
+    /**
+     * @param file Local file
+     * @param target URL of the existing binary
+     * @return true if Fedora holds the same content as the local file
+     * @throws IOException
+     */
+    private boolean isUnchanged(Path file, String target) throws IOException {
+        FedoraResponse response = FedoraClient.await(client.sendAsync("HEAD", target, null, null, "Want-Digest", digestCache.getAlgorithm()));
+        return response.getStatus() == 200 && digestCache.matches(response.getHeader("digest"), digestCache.getDigest(file));
+    }
+
+    /**
+     * Plans the upload of the packed fulltext, like {@link #planFolder(List, String, boolean)}, without writing the archive: it is planned from the
+     * sizes and modification times of the fulltext files. An existing archive counts as changed, as its digest is only known once it has been
+     * written; the export compares it after packing. The uncompressed size of the files is an upper bound of the size of the archive.
+     *
+     * @param folders Folders of the OCR results by their name in the archive
+     * @return Plan of the fulltext container
+     * @throws IOException
+     */
+    private IngestPlan.Folder planFulltextArchive(Map<String, Path> folders) throws IOException {
+        long archiveSize = 0;
+        long indexSize = 0;
+        long lastModified = 0;
+        int fileCount = 0;
+        for (Map.Entry<String, Path> folder : folders.entrySet()) {
+            if (!Files.isDirectory(folder.getValue())) {
+                continue;
+            }
+            for (Path file : new NIOFileUtils().listFiles(folder.getValue().toString())) {
+                String name = folder.getKey() + "/" + file.getFileName();
+                // local header, central directory entry and data descriptor of the entry, and its index line
+                archiveSize += Files.size(file) + 2 * name.length() + 100;
+                indexSize += name.length() + 40;
+                lastModified = Math.max(lastModified, Files.getLastModifiedTime(file).toMillis());
+                fileCount++;
+            }
+        }
+        if (fileCount == 0 && !config.isDiffReplace()) {
+            return new IngestPlan.Folder(FULLTEXT, null);
+        }
+        String containerUrl = FedoraClient.path(getRecordUrl(), FULLTEXT);
+        IngestPlan.Folder plan = new IngestPlan.Folder(FULLTEXT, ContainerIndex.load(client, containerUrl));
+        plan.addRequests(1);
+        ContainerIndex existingFiles = plan.getExistingFiles();
+        boolean recordReplaced = !config.isUseVersioning() && !config.isDiffReplace() && (journal == null || !journal.isResuming());
+        boolean compareDigests = config.isCompareDigests() && digestCache != null;
+        Set<String> obsolete = existingFiles == null ? new TreeSet<>() : new TreeSet<>(existingFiles.getNames());
+        if (fileCount > 0) {
+            String[] names = { FulltextArchive.ARCHIVE, FulltextArchive.INDEX };
+            long[] sizes = { archiveSize, indexSize };
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                obsolete.remove(name);
+                if (journal != null && journal.isCommitted(FULLTEXT + "/" + name, lastModified)) {
+                    plan.add(null, name, sizes[i], IngestPlan.Action.UNCHANGED, false, 0);
+                } else if (existingFiles == null) {
+                    plan.add(null, name, sizes[i], IngestPlan.Action.NEW, false, 2);
+                } else if (!existingFiles.contains(name)) {
+                    plan.add(null, name, sizes[i], IngestPlan.Action.NEW, false, 1);
+                } else if (recordReplaced) {
+                    plan.add(null, name, sizes[i], IngestPlan.Action.CHANGED, false, 1);
+                } else if (compareDigests) {
+                    plan.add(null, name, sizes[i], IngestPlan.Action.CHANGED, false, 2);
+                } else {
+                    plan.add(null, name, sizes[i], IngestPlan.Action.CHANGED, false, config.isUseVersioning() ? 1 : 3);
+                }
+            }
+            if (config.isChunkedIngest()) {
+                boolean split = config.getChunkFiles() == 1 || (config.getChunkBytes() > 0 && archiveSize + indexSize > config.getChunkBytes());
+                plan.addRequests(split ? 4 : 2);
+            }
+        }
+        if (config.isDiffReplace() && existingFiles != null) {
+            for (String name : obsolete) {
+                plan.add(null, name, 0, IngestPlan.Action.DELETE, false, 2);
+            }
+            if (config.isChunkedIngest() && !obsolete.isEmpty()) {
+                plan.addRequests(2);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Plans the upload of a package into a single container, like {@link #planFolder(List, String, boolean)}. The content of the package is only
+     * known once it has been written, so an existing package is always uploaded again. If the record is updated in place, all other binaries of
+     * the container are deleted.
+     *
+     * @param bag
+     * @param label Name of the container in Fedora
+     * @return Plan of the folder
+     */
+    private IngestPlan.Folder planPackage(BagPackage bag, String label) {
+        String containerUrl = FedoraClient.path(getRecordUrl(), label);
+        IngestPlan.Folder plan = new IngestPlan.Folder(label, ContainerIndex.load(client, containerUrl));
+        plan.addRequests(1);
+        ContainerIndex existingFiles = plan.getExistingFiles();
+        String name = bag.getFileName();
+        boolean recordReplaced = !config.isUseVersioning() && !config.isDiffReplace() && (journal == null || !journal.isResuming());
+        // the fixity of the package is checked with a HEAD request after the upload
+        int fixityRequests = config.isSendDigest() ? 1 : 0;
+        if (bag.getFileCount() > 0) {
+            long size = bag.getEstimatedSize();
+            if (existingFiles == null) {
+                plan.add(null, name, size, IngestPlan.Action.NEW, false, 2 + fixityRequests);
+            } else if (!existingFiles.contains(name)) {
+                plan.add(null, name, size, IngestPlan.Action.NEW, false, 1 + fixityRequests);
+            } else {
+                boolean replaced = recordReplaced || config.isUseVersioning() || config.isDiffReplace();
+                plan.add(null, name, size, IngestPlan.Action.CHANGED, false, (replaced ? 1 : 3) + fixityRequests);
+            }
+            if (config.isChunkedIngest()) {
+                plan.addRequests(2);
+            }
+        }
+        if (config.isDiffReplace() && existingFiles != null) {
+            Set<String> obsolete = new TreeSet<>(existingFiles.getNames());
+            obsolete.remove(name);
+            for (String obsoleteName : obsolete) {
+                plan.add(null, obsoleteName, 0, IngestPlan.Action.DELETE, false, 2);
+            }
+            if (config.isChunkedIngest() && !obsolete.isEmpty()) {
+                plan.addRequests(2);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Uploads the package as a single binary into the container with the given label. The archive is written while it is sent, with chunked
+     * transfer encoding, so it is neither staged on disk nor held in memory. In chunked mode the package is committed in a transaction of its own.
+     * <p>
+     * The journal does not record the package, so an interrupted export uploads it again. Files ingested by reference are packaged as well.
+     *
+     * @param bag
+     * @param label Name of the container in Fedora
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void addPackage(BagPackage bag, String label) throws IOException, InterruptedException {
+        IngestPlan.Folder plan = planPackage(bag, label);
+        if (bag.getFileCount() > 0) {
+            if (config.isChunkedIngest()) {
+                beginTransaction();
+            }
+            String target = FedoraClient.path(getRecordUrl(), label, bag.getFileName());
+            String fileUrl;
+            try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.UPLOAD)) {
+                fileUrl = uploadPackage(bag, target, plan.getExistingFiles());
+            }
+            manifest.put(label, bag.getFileName(), toFedoraUrl(fileUrl), config.isSendDigest() ? bag.getDigest() : null);
+            if (config.isChunkedIngest()) {
+                commitTransaction();
+                committedFiles += bag.getFileCount();
+            }
+            log.debug("Package " + label + "/" + bag.getFileName() + " with " + bag.getFileCount() + " files uploaded (" + bag.getSize()
+                    + " bytes)");
+        }
+        if (config.isDiffReplace()) {
+            deleteObsoleteFiles(plan);
+        }
+    }
+
+    /**
+     * Sends the package as new resource, as new version of an existing resource, or as replacement of an existing resource. If digests are sent,
+     * the digest of the archive is computed while it is written and compared with the digest Fedora reports afterwards, as it cannot be sent
+     * ahead of the content.
+     *
+     * @param bag
+     * @param target Target URL containing the transaction ID
+     * @param existingFiles Resources of the target container; if null, the existence of the resource is checked with a HEAD request
+     * @return File location URL in Fedora
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private String uploadPackage(BagPackage bag, String target, ContainerIndex existingFiles) throws IOException, InterruptedException {
+        boolean exists = existingFiles != null ? existingFiles.contains(bag.getFileName()) : client.head(target).getStatus() == 200;
+        List<String> headers = new ArrayList<>();
+        headers.add("Content-Disposition");
+        headers.add("attachment; filename=\"" + bag.getFileName() + "\"");
+        // the byte rate limit applies to the package as a whole
+        long wait = throttle.reserve(bag.getEstimatedSize());
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        FedoraResponse response;
+        if (exists && version != null) {
+            headers.add("Slug");
+            headers.add(version);
+            response = client.post(FedoraClient.path(target, "fcr:versions"), new BagEntity(bag), headers.toArray(new String[0]));
+        } else {
+            if (exists && !config.isDiffReplace()) {
+                // No versioning: Delete the package and its tombstone so it can be created again
+                FedoraResponse deleted = client.delete(target);
+                if (deleted.getStatus() == 204) {
+                    deleted = client.delete(FedoraClient.path(target, "fcr:tombstone"));
+                }
+                if (deleted.getStatus() != 204) {
+                    throw new IOException("Package " + bag.getFileName() + " could not be replaced: " + deleted);
+                }
+            }
+            response = client.put(target, new BagEntity(bag), headers.toArray(new String[0]));
+        }
+        if (response.getStatus() != 201 && response.getStatus() != 204) {
+            String msg = "Package " + bag.getFileName() + " could not be uploaded: " + response;
+            log.error(msg);
+            throw new IOException(msg);
+        }
+        metrics.increment(ExportMetrics.FILES_UPLOADED);
+        metrics.addUploadedBytes(bag.getSize());
+        if (config.isSendDigest() && digestCache != null) {
+            FedoraResponse head = client.head(target, "Want-Digest", digestCache.getAlgorithm());
+            String digestHeader = head.getHeader("digest");
+            if (digestHeader == null) {
+                log.warn("Fedora did not report the digest of " + toFedoraUrl(target) + ", the fixity of the package was not checked");
+            } else if (!digestCache.matches(digestHeader, bag.getDigest())) {
+                String msg = "Fixity check of package " + bag.getFileName() + " failed: sent " + digestCache.getAlgorithm() + "=" + bag.getDigest()
+                        + ", Fedora reports " + digestHeader;
+                log.error(msg);
+                throw new IOException(msg);
+            }
+        }
+        String location = response.getStatus() == 201 ? response.getHeader("location") : null;
+        return location != null ? location : target;
+    }
+
+    /**
+     * Deletes the binaries of the container with the given label that have no local file any more. In chunked mode this happens in a transaction
+     * of its own after the last chunk.
+     *
+     * @param plan Plan of the folder
+     * @throws IOException
+     */
+    private void deleteObsoleteFiles(IngestPlan.Folder plan) throws IOException {
+        String label = plan.getLabel();
+        if (plan.getExistingFiles() == null) {
+            log.warn("Container " + label + " could not be listed, files that no longer exist locally are kept in Fedora");
+            return;
+        }
+        List<String> obsolete = plan.getDeletions();
+        if (obsolete.isEmpty()) {
+            return;
+        }
+        if (config.isChunkedIngest()) {
+            beginTransaction();
+        }
+        String containerUrl = FedoraClient.path(getRecordUrl(), label);
+        for (String name : obsolete) {
+            String url = FedoraClient.path(containerUrl, name);
+            try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.DELETE)) {
+                // Delete the binary and its tombstone (DELETE operations)
+                FedoraResponse response = client.delete(url);
+                if (response.getStatus() == 204) {
+                    response = client.delete(FedoraClient.path(url, "fcr:tombstone"));
+                }
+                if (response.getStatus() != 204) {
+                    String msg = response.toString();
+                    log.error(msg);
+                    throw new IOException("File " + label + "/" + name + " could not be deleted: " + msg);
+                }
+            }
+            metrics.increment(ExportMetrics.FILES_DELETED);
+            log.debug("Resource deleted as it no longer exists locally: " + toFedoraUrl(url));
+        }
+        if (config.isChunkedIngest()) {
+            commitTransaction();
+        }
+    }
+
+    /**
+     * Uploads the given files into the container of the given plan within the current transaction. Concurrent uploads start with the largest
+     * files, so no single large file is left to upload at the end while the other uploads are idle.
+     *
+     * @param files Files of the folder, or of a chunk of it
+     * @param plan Plan of the folder
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void uploadFiles(List<Path> files, IngestPlan.Folder plan) throws IOException, InterruptedException {
+        String label = plan.getLabel();
+        ContainerIndex existingFiles = plan.getExistingFiles();
+        // the small fulltext files are uploaded with a higher concurrency than the images
+        UploadThrottle throttle = FULLTEXT.equals(label) ? fulltextThrottle : this.throttle;
+        String mediaUrl = FedoraClient.path(getRecordUrl(), label); // URL for the folder with the correct label
+        int uploadThreads = throttle.getMaxConcurrency();
+        if (uploadThreads <= 1 || files.size() <= 1) {
+            for (Path file : files) {
+                uploadFile(file, label, mediaUrl, existingFiles);
+            }
+            return;
+        }
+        if (client.isAsync()) {
+            uploadFilesAsync(plan.getLargestFirst(files), label, mediaUrl, existingFiles, throttle);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(uploadThreads, files.size()));
+        try {
+            List<Future<String>> uploads = new ArrayList<>(files.size());
+            for (Path file : plan.getLargestFirst(files)) {
+                uploads.add(executor.submit(() -> {
+                    long bytes = Files.size(file);
+                    // the throttle decides how many of the threads upload at the same time
+                    throttle.acquire();
+                    long start = System.nanoTime();
+                    boolean success = false;
+                    try {
+                        String fileUrl = uploadFile(file, label, mediaUrl, existingFiles);
+                        success = true;
+                        return fileUrl;
+                    } finally {
+                        throttle.release(System.nanoTime() - start, bytes, success);
+                    }
+                }));
+            }
+            // The URLs are recorded in the manifest by each upload, only failures are collected here
+            for (Future<String> upload : uploads) {
+                getUploadResult(upload);
+            }
+        } finally {
+            executor.shutdownNow();
+            // let the uploads in flight finish before the transaction is rolled back; blocking requests do not react to the interrupt
+            try {
+                while (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    log.debug("Waiting for the uploads in flight of " + label + " to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Uploads the given files with the non-blocking transport. No threads are needed; instead, the throttle limits the number of uploads sent at the
+     * same time, and no further uploads are started after one has failed. If an upload fails or the thread is interrupted, the uploads already
+     * started are waited for before the exception is thrown.
+     *
+     * @param files
+     * @param label
+     * @param mediaUrl URL of the container within the current transaction
+     * @param existingFiles
+     * @param throttle Limits the uploads of the folder
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void uploadFilesAsync(List<Path> files, String label, String mediaUrl, ContainerIndex existingFiles, UploadThrottle throttle)
+            throws IOException, InterruptedException {
+        AtomicBoolean failed = new AtomicBoolean();
+        // the requests themselves, as they keep running if waiting for them is interrupted
+        List<CompletableFuture<String>> started = new ArrayList<>(files.size());
+        List<CompletableFuture<String>> uploads = new ArrayList<>(files.size());
+        try {
+            for (Path file : files) {
+                long bytes = Files.size(file);
+                throttle.acquire();
+                if (failed.get()) {
+                    throttle.release(0, 0, true);
+                    break;
+                }
+                long start = System.nanoTime();
+                CompletableFuture<String> upload;
+                try {
+                    upload = uploadFileAsync(file, label, mediaUrl, existingFiles);
+                } catch (IOException | RuntimeException e) {
+                    upload = CompletableFuture.failedFuture(e);
+                }
+                started.add(upload);
+                uploads.add(upload.whenComplete((url, e) -> {
+                    if (e != null) {
+                        failed.set(true);
+                    }
+                    throttle.release(System.nanoTime() - start, bytes, e == null);
+                }));
+            }
+            // The URLs are recorded in the manifest by each upload, only failures are collected here
+            for (CompletableFuture<String> upload : uploads) {
+                FedoraClient.await(upload);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // no further uploads are started; let the requests in flight finish before the transaction is rolled back
+            failed.set(true);
+            awaitUploads(started);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the given uploads to end, also if the thread is interrupted, so no request keeps running against a transaction that is rolled
+     * back. The interrupt status is kept.
+     *
+     * @param uploads
+     */
+    private static void awaitUploads(List<CompletableFuture<String>> uploads) {
+        try {
+            CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException | CancellationException e) {
+            // the failure is reported by the caller
+        }
+    }
+
+    /**
+     * Starts the upload of a single file, like {@link #uploadFile(Path, String, String, ContainerIndex)}.
+     *
+     * @param file
+     * @param label
+     * @param mediaUrl URL of the container within the current transaction
+     * @param existingFiles
+     * @return Future of the Fedora URL of the file (outside of the transaction) or null
+     * @throws IOException
+     */
+    private CompletableFuture<String> uploadFileAsync(Path file, String label, String mediaUrl, ContainerIndex existingFiles) throws IOException {
+        String name = label + "/" + file.getFileName().toString();
+        if (journal != null) {
+            String committedUrl = journal.getCommittedUrl(name, file, digestCache);
+            if (committedUrl != null) {
+                log.debug("File was committed by an earlier export, skipping: " + file);
+                metrics.increment(ExportMetrics.FILES_SKIPPED);
+                return CompletableFuture.completedFuture(recordFile(label, file, committedUrl));
+            }
+        }
+        ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.UPLOAD);
+        return addFileResourceAsync(file, FedoraClient.path(mediaUrl, file.getFileName().toString()), existingFiles, true)
+                .whenComplete((fileUrl, e) -> stopwatch.close())
+                .thenApply(fileUrl -> {
+                    if (fileUrl == null) {
+                        return null;
+                    }
+                    String url = toFedoraUrl(fileUrl);
+                    try {
+                        if (journal != null) {
+                            journal.recordUpload(transactionUrl, name, file, digestCache != null ? digestCache.getDigest(file) : null, url);
+                        }
+                        return recordFile(label, file, url);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Uploads a single file, unless the journal shows that it was already committed by an earlier export, and records the upload in the journal.
+     *
+     * @param file
+     * @param label
+     * @param mediaUrl URL of the container within the current transaction
+     * @param existingFiles
+     * @return Fedora URL of the file (outside of the transaction) or null
+     * @throws IOException
+     */
+    private String uploadFile(Path file, String label, String mediaUrl, ContainerIndex existingFiles) throws IOException {
+        String name = label + "/" + file.getFileName().toString();
+        if (journal != null) {
+            String committedUrl = journal.getCommittedUrl(name, file, digestCache);
+            if (committedUrl != null) {
+                log.debug("File was committed by an earlier export, skipping: " + file);
+                metrics.increment(ExportMetrics.FILES_SKIPPED);
+                return recordFile(label, file, committedUrl);
+            }
+        }
+        String fileUrl;
+        try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.UPLOAD)) {
+            fileUrl = FedoraClient.await(addFileResourceAsync(file, FedoraClient.path(mediaUrl, file.getFileName().toString()), existingFiles, true));
+        }
+        if (fileUrl == null) {
+            return null;
+        }
+        String url = toFedoraUrl(fileUrl);
+        if (journal != null) {
+            journal.recordUpload(transactionUrl, name, file, digestCache != null ? digestCache.getDigest(file) : null, url);
+        }
+        return recordFile(label, file, url);
+    }
+
+    /**
+     * Adds the given file to the manifest for the METS file, with its digest if digests are sent to Fedora.
+     *
+     * @param label Folder of the file
+     * @param file
+     * @param url Fedora URL of the file
+     * @return url
+     * @throws IOException
+     */
+    private String recordFile(String label, Path file, String url) throws IOException {
+        String checksum = config.isSendDigest() && digestCache != null ? digestCache.getDigest(file) : null;
+        manifest.put(label, file.getFileName().toString(), url, checksum);
+        return url;
+    }
+
+    /**
+     * Opens the digest cache in the given folder. It is used by the delta ingest and for the "Digest" header of uploads.
+     *
+     * @param directory
+     */
+    private void openDigestCache(Path directory) {
+        digestCache = new DigestCache(directory.resolve(DIGEST_CACHE_FILE), config.getDigestAlgorithm());
+    }
+
+    /**
+     * Splits the files into consecutive chunks that contain at most maxFiles files and at most maxBytes bytes. A single file larger than maxBytes
+     * forms a chunk of its own.
+     *
+     * @param files
+     * @param maxFiles Maximum number of files per chunk, or 0 for no limit
+     * @param maxBytes Maximum size of a chunk in bytes, or 0 for no limit
+     * @return
+     * @throws IOException
+     */
+    static List<List<Path>> splitIntoChunks(List<Path> files, int maxFiles, long maxBytes) throws IOException {
+        List<List<Path>> chunks = new ArrayList<>();
+        List<Path> chunk = new ArrayList<>();
+        long chunkBytes = 0;
+        for (Path file : files) {
+            long size = Files.size(file);
+            boolean full = (maxFiles > 0 && chunk.size() >= maxFiles) || (maxBytes > 0 && chunkBytes + size > maxBytes);
+            if (full && !chunk.isEmpty()) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+            chunk.add(file);
+            chunkBytes += size;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Waits for the given upload to finish and unwraps the exception thrown by the upload, if any.
+     *
+     * @param upload
+     * @return File location URL in Fedora
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static String getUploadResult(Future<String> upload) throws IOException, InterruptedException {
+        try {
+            return upload.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Removes the transaction ID from the given URL.
+     *
+     * @param url URL within the transaction
+     * @return URL of the resource after the transaction is committed
+     */
+    private String toFedoraUrl(String url) {
+        return toFedoraUrl(url, transactionUrl, fedoraUrl);
+    }
+
+    static String toFedoraUrl(String url, String transactionUrl, String fedoraUrl) {
+        return url.replace(transactionUrl, fedoraUrl);
+    }
+
+    /**
+     * Delete a resource form fedora based on the container name
+     *
+     * @param recordContainer the container URL to delete
+     * @return
+     */
+    public boolean deleteResource(String recordContainer) {
+        try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.DELETE)) {
+            // Check whether the container for this record already exists (GET operation; returns 200 if exists)
+            FedoraResponse response = client.get(recordContainer, false);
+            if (response.getStatus() == 200) {
+                log.debug("Record container already exists: " + recordContainer);
+                // Delete the container (DELETE operation)
+                response = client.delete(recordContainer);
+                switch (response.getStatus()) {
+                    case 204:
+                        // Each deleted resource leaves a tombstone which prevents a resource with the same name
+                        // from being created, so the tombstone has to be deleted as well (DELETE operation)
+                        response = client.delete(FedoraClient.path(recordContainer, "fcr:tombstone"));
+                        switch (response.getStatus()) {
+                            case 204:
+                                // Deleted successfully
+                                log.debug("Record container deleted");
+                                break;
+                            default:
+                                // Error occured while deleting the tombstone
+                                String msg = response.toString();
+                                log.error(msg);
+                                reportError("The ingest into Fedora was not successful: " + msg);
+                                return false;
+                        }
+                        break;
+                    default:
+                        // a general error occurred and gets logged
+                        String msg = response.toString();
+                        log.error(msg);
+                        reportError("The ingest into Fedora was not successful: " + msg);
+                        return false;
+                }
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+            reportError("The ingest into Fedora was not successful: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the given binary file to Fedora
+     *
+     * @param file File to add
+     * @param target Target URL containing the transaction ID
+     * @param existingFiles Resources of the target container; if null, the existence of the resource is checked with a HEAD request
+     * @return File location URL in Fedora
+     * @throws IOException
+     */
+    private String addFileResource(Path file, String target, ContainerIndex existingFiles) throws IOException {
+        return FedoraClient.await(addFileResourceAsync(file, target, existingFiles, false));
+    }
+
+    /**
+     * Adds the given binary file to Fedora. The existence check, the digest check and the upload are chained, so with the non-blocking transport
+     * no thread waits for Fedora in between.
+     *
+     * @param file File to add
+     * @param target Target URL containing the transaction ID
+     * @param existingFiles Resources of the target container; if null, the existence of the resource is checked with a HEAD request
+     * @param byReference If true and the file is below a configured external path, Fedora reads the file itself instead of it being uploaded
+     * @return Future of the file location URL in Fedora
+     */
+    private CompletableFuture<String> addFileResourceAsync(Path file, String target, ContainerIndex existingFiles, boolean byReference) {
+        if (file == null) {
+            throw new IllegalArgumentException("file may not be null");
+        }
+        if (target == null) {
+            throw new IllegalArgumentException("target may not be null");
+        }
+        URI externalUri = byReference && externalContent != null ? externalContent.getUri(file) : null;
+
+        // Check resource existence
+        CompletableFuture<Boolean> existence;
+        if (existingFiles != null) {
+            existence = CompletableFuture.completedFuture(existingFiles.contains(file.getFileName().toString()));
+        } else {
+            existence = client.sendAsync("HEAD", target, null, null).thenApply(response -> response.getStatus() == 200);
+        }
+        return existence.thenCompose(exists -> {
+            if (!exists) {
+                return putFile(file, externalUri, target, false);
+            }
+            log.debug("Resource already exists: " + toFedoraUrl(target));
+            if (digestCache == null || !config.isCompareDigests()) {
+                return putFile(file, externalUri, target, true);
+            }
+            // Skip the upload if Fedora already holds the same content
+            return client.sendAsync("HEAD", target, null, null, "Want-Digest", digestCache.getAlgorithm()).thenCompose(response -> {
+                String localDigest;
+                try {
+                    localDigest = digestCache.getDigest(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (digestCache.matches(response.getHeader("digest"), localDigest)) {
+                    log.debug("Resource unchanged, upload skipped: " + toFedoraUrl(target));
+                    metrics.increment(ExportMetrics.FILES_SKIPPED);
+                    return CompletableFuture.completedFuture(target);
+                }
+                return putFile(file, externalUri, target, true);
+            });
+        });
+    }
+
+    /**
+     * Uploads the file as new resource, as new version of an existing resource, or as replacement of an existing resource.
+     *
+     * @param file
+     * @param externalUri Location of the file for Fedora if it is ingested by reference, otherwise null
+     * @param target
+     * @param exists
+     * @return
+     */
+    private CompletableFuture<String> putFile(Path file, URI externalUri, String target, boolean exists) {
+        // Determine mime type (cached per folder and extension, never reads from the upload stream)
+        String mimeType = mimeTypes.getMimeType(file);
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<FedoraResponse> upload;
+        if (exists && version == null && config.isDiffReplace()) {
+            // Replace the content of the binary in place (PUT operation)
+            upload = sendFile(file, externalUri, target, false, mimeType, 0);
+        } else if (exists && version == null) {
+            // No versioning: Delete file so it can be replaced (DELETE operation)
+            // TODO This part is obsolete because the entire container is now deleted if it already exists (much faster)
+            upload = client.sendAsync("DELETE", target, null, null)
+                    .thenCompose(response -> {
+                        checkDeleted(response);
+                        // Delete tombstone (DELETE operation)
+                        return client.sendAsync("DELETE", FedoraClient.path(target, "fcr:tombstone"), null, null);
+                    })
+                    .thenCompose(response -> {
+                        checkDeleted(response);
+                        // Add file again
+                        return sendFile(file, externalUri, target, false, mimeType, 0);
+                    });
+        } else {
+            upload = sendFile(file, externalUri, target, exists, mimeType, 0);
+        }
+        // Handle response to the file adding operation (both versioned or not)
+        return upload.thenApply(response -> {
+            switch (response.getStatus()) {
+                case 201:
+                    countTransfer(externalUri, size);
+                    if (exists) {
+                        if (version != null) {
+                            // Successfully added new version
+                            log.debug("New resource version " + version + " added: " + toFedoraUrl(response.getHeader("location")));
+                        } else {
+                            // Successfully deleted and re-added file
+                            log.debug("Resource updated: " + toFedoraUrl(response.getHeader("location")));
+                        }
+                    } else {
+                        // Added completely new file
+                        log.debug("New resource added: " + toFedoraUrl(response.getHeader("location")));
+                    }
+                    break;
+                case 204:
+                    // Content of the existing binary replaced, Fedora does not send a location in this case
+                    countTransfer(externalUri, size);
+                    log.debug("Resource replaced: " + toFedoraUrl(target));
+                    return target;
+                default:
+                    // Error; the export fails, as the METS file would lack the URL of this file
+                    String msg = "File " + file.getFileName() + " could not be uploaded: " + response;
+                    log.error(msg);
+                    throw new CompletionException(new IOException(msg));
+            }
+            return response.getHeader("location");
+        });
+    }
+
+    private void countTransfer(URI externalUri, long size) {
+        if (externalUri != null) {
+            metrics.increment(ExportMetrics.FILES_REFERENCED);
+        } else {
+            metrics.increment(ExportMetrics.FILES_UPLOADED);
+            metrics.addUploadedBytes(size);
+        }
+    }
+
+    /**
+     * Sends the file as new resource (PUT operation) or as new version of the existing resource (POST operation). If digests are sent and Fedora
+     * reports a mismatch, the digest is computed again and the file is sent again, up to {@link #DIGEST_RETRIES} times.
+     * <p>
+     * A file with an external URI is not transferred; the request only carries a "Link" header with its location, and Fedora reads the content
+     * itself according to the configured handling (copy, proxy or redirect).
+     *
+     * @param file
+     * @param externalUri Location of the file for Fedora, or null to upload the content
+     * @param target
+     * @param newVersion
+     * @param mimeType
+     * @param attempt Number of previous attempts
+     * @return
+     */
+    private CompletableFuture<FedoraResponse> sendFile(Path file, URI externalUri, String target, boolean newVersion, String mimeType,
+            int attempt) {
+        List<String> headers = new ArrayList<>();
+        // "Content-Disposition" attribute contains the file name
+        headers.add("Content-Disposition");
+        headers.add("attachment; filename=\"" + file.getFileName().toString() + "\"");
+        if (newVersion) {
+            // "Slug" is the version name attribute
+            headers.add("Slug");
+            headers.add(version);
+        }
+        if (config.isSendDigest() && digestCache != null) {
+            // Fedora verifies the content against the digest and rejects the upload if it does not match
+            try {
+                headers.add("Digest");
+                headers.add(digestCache.getAlgorithm() + "=" + digestCache.getDigest(file));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        String method = newVersion ? "POST" : "PUT";
+        String url = newVersion ? FedoraClient.path(target, "fcr:versions") : target;
+        CompletableFuture<FedoraResponse> request;
+        if (externalUri != null) {
+            headers.add("Link");
+            headers.add(externalContent.getLinkHeader(externalUri, mimeType));
+            request = client.sendAsync(method, url, null, null, headers.toArray(new String[0]));
+        } else {
+            request = throttled(file, () -> client.sendAsync(method, url, file, mimeType, headers.toArray(new String[0])));
+        }
+        return request.thenCompose(response -> {
+            if (!isDigestMismatch(response)) {
+                return CompletableFuture.completedFuture(response);
+            }
+            if (attempt >= DIGEST_RETRIES) {
+                String msg = "Fixity check of " + file + " failed after " + (attempt + 1) + " attempts: " + response;
+                log.error(msg);
+                throw new CompletionException(new IOException(msg));
+            }
+            log.warn("Digest mismatch for " + file + ", uploading it again: " + response);
+            metrics.increment(ExportMetrics.RETRIES);
+            // the file may have been changed without a change of size and modification time
+            digestCache.invalidate(file);
+            return sendFile(file, externalUri, target, newVersion, mimeType, attempt + 1);
+        });
+    }
+
+    /**
+     * Sends an upload once the byte rate limit of the throttle allows it. The non-blocking transport delays the request without blocking a thread,
+     * the pooled transport waits in the uploading thread.
+     *
+     * @param file File to upload
+     * @param request Sends the request
+     * @return
+     */
+    private CompletableFuture<FedoraResponse> throttled(Path file, Supplier<CompletableFuture<FedoraResponse>> request) {
+        long wait;
+        try {
+            wait = throttle.reserve(Files.size(file));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (wait <= 0) {
+            return request.get();
+        }
+        if (client.isAsync()) {
+            return CompletableFuture.supplyAsync(request, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS)).thenCompose(f -> f);
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(new InterruptedIOException("Interrupted while waiting for the upload rate limit"));
+        }
+        return request.get();
+    }
+
+    /**
+     * @param response
+     * @return true if Fedora rejected the upload because the content did not match the "Digest" header
+     */
+    private boolean isDigestMismatch(FedoraResponse response) {
+        if (!config.isSendDigest() || (response.getStatus() != 409 && response.getStatus() != 400)) {
+            return false;
+        }
+        String body = response.getBody() == null ? "" : response.getBody().toLowerCase(Locale.ENGLISH);
+        return body.contains("checksum") || body.contains("digest");
+    }
+
+    /**
+     * Fails the upload if the given response to a DELETE request is not "204 No Content".
+     *
+     * @param response
+     */
+    private static void checkDeleted(FedoraResponse response) {
+        if (response.getStatus() != 204) {
+            // Error
+            String msg = response.toString();
+            log.error(msg);
+            throw new CompletionException(new IOException(msg));
+        }
+    }
+
+    /**
+     * Generates METS file from the given process.
+     * 
+     * @param destination Target path
+     * @return
+     * @throws UGHException
+     * @throws DAOException
+     * @throws InterruptedException
+     * @throws IOException
+     * @throws SwapException
+     */
+    private Path createMetsFile(String destination)
+            throws UGHException, DAOException, InterruptedException, IOException, SwapException {
+        Prefs prefs = process.getRegelsatz().getPreferences();
+        Fileformat fileformat = process.readMetadataFile();
+
+        ExportFileformat mm = MetadatenHelper.getExportFileformatByName(process.getProjekt().getFileFormatDmsExport(), process.getRegelsatz());
+        mm.setWriteLocal(false);
+
+        DigitalDocument dd = fileformat.getDigitalDocument();
+
+        MetadatenImagesHelper mih = new MetadatenImagesHelper(prefs, dd);
+
+        if (dd.getFileSet() == null || dd.getFileSet().getAllFiles().isEmpty()) {
+            Helper.setMeldung(process.getTitel() + ": Digital document does not contain images; temporarily adding them for mets file creation");
+            mih.createPagination(process, null);
+        } else {
+            mih.checkImageNames(process, null);
+        }
+
+        mm.setDigitalDocument(dd);
+
+        VariableReplacer vp = new VariableReplacer(mm.getDigitalDocument(), prefs, process, null);
+
+        VirtualFileGroup v = new VirtualFileGroup();
+        v.setName("PRESENTATION");
+        v.setPathToFiles(fedoraUrl);
+        v.setMimetype("image/html-sandboxed"); // mime type used by Goobi viewer to identify external image resources
+        //        v.setMimetype("image/tiff");
+        v.setFileSuffix("tif"); // TODO File suffix as a method argument?
+        mm.getDigitalDocument().getFileSet().addVirtualFileGroup(v);
+
+        // Replace rights and digiprov entries.
+        mm.setRightsOwner(vp.replace(process.getProjekt().getMetsRightsOwner()));
+        mm.setRightsOwnerLogo(vp.replace(process.getProjekt().getMetsRightsOwnerLogo()));
+        mm.setRightsOwnerSiteURL(vp.replace(process.getProjekt().getMetsRightsOwnerSite()));
+        mm.setRightsOwnerContact(vp.replace(process.getProjekt().getMetsRightsOwnerMail()));
+        mm.setDigiprovPresentation(vp.replace(process.getProjekt().getMetsDigiprovPresentation()));
+        mm.setDigiprovReference(vp.replace(process.getProjekt().getMetsDigiprovReference()));
+        mm.setDigiprovPresentationAnchor(vp.replace(process.getProjekt().getMetsDigiprovPresentationAnchor()));
+        mm.setDigiprovReferenceAnchor(vp.replace(process.getProjekt().getMetsDigiprovReferenceAnchor()));
+
+        mm.setMetsRightsLicense(vp.replace(process.getProjekt().getMetsRightsLicense()));
+        mm.setMetsRightsSponsor(vp.replace(process.getProjekt().getMetsRightsSponsor()));
+        mm.setMetsRightsSponsorLogo(vp.replace(process.getProjekt().getMetsRightsSponsorLogo()));
+        mm.setMetsRightsSponsorSiteURL(vp.replace(process.getProjekt().getMetsRightsSponsorSiteURL()));
+
+        mm.setPurlUrl(vp.replace(process.getProjekt().getMetsPurl()));
+        mm.setContentIDs(vp.replace(process.getProjekt().getMetsContentIDs()));
+
+        String pointer = process.getProjekt().getMetsPointerPath();
+        pointer = vp.replace(pointer);
+        mm.setMptrUrl(pointer);
+
+        String anchor = process.getProjekt().getMetsPointerPathAnchor();
+        pointer = vp.replace(anchor);
+        mm.setMptrAnchorUrl(pointer);
+
+        mm.setGoobiID(String.valueOf(process.getId()));
+        // Write the temporary file next to the final one, so both are on the same file system
+        Path metsFilePath = Paths.get(destination, process.getTitel() + ".xml");
+        Path tempFile = Files.createTempFile(metsFilePath.getParent(), process.getTitel(), ".xml");
+        try {
+            mm.write(tempFile.toString());
+            overwriteUrls(tempFile, metsFilePath);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        return metsFilePath;
+    }
+
+    /**
+     * Replaces Goobi-generated file URLs in PRESENATATION (and FEDORA) METS file groups with URLs generated in this profile. The file entries are
+     * matched by name with the master images, or with the media images if masters are not ingested. The METS file is streamed from source to
+     * target in a single pass.
+     * <p>
+     * If images were ingested one by one, every file entry must match one of them; otherwise the METS file would point to files outside of
+     * Fedora, and the export fails before the METS file is committed.
+     * <p>
+     * The document is written to a temporary file next to the target, which replaces the target only once it is complete and valid. The target
+     * may be a hard link of the METS file exported before (see {@link #linkOrCopy(Path, Path)}), so it must not be written in place.
+     * 
+     * @param source METS file as written by Goobi
+     * @param target METS file with the Fedora URLs
+     * @throws IOException if the file cannot be rewritten or file entries do not match an ingested image
+     */
+    void overwriteUrls(Path source, Path target) throws IOException {
+        Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+        try (ExportMetrics.Stopwatch stopwatch = metrics.start(ExportMetrics.REWRITE)) {
+            String checksumType = config.isSendDigest() && digestCache != null ? digestCache.getChecksumType() : null;
+            MetsUrlRewriter rewriter = new MetsUrlRewriter(manifest, PRESENTATION_FOLDERS, checksumType);
+            int unmatched = rewriter.rewrite(source, tempFile);
+            if (unmatched > 0) {
+                List<String> unmatchedFiles = rewriter.getUnmatchedFiles();
+                String msg = unmatched + " file entries of the METS file do not match an ingested image: " + String.join(", ", unmatchedFiles)
+                        + (unmatched > unmatchedFiles.size() ? ", ..." : "");
+                if (PRESENTATION_FOLDERS.stream().anyMatch(manifest::containsFolder)) {
+                    throw new IOException(msg);
+                }
+                // the images are not ingested, or only as a package, so there is nothing to point to
+                log.warn(msg + "; they keep their location");
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Makes the given file available at the target location. A hard link is used if possible, otherwise the file is copied. The file is only
+     * ever replaced as a whole, never written in place, so a later export does not change the linked file.
+     * 
+     * @param file
+     * @param target
+     * @throws IOException
+     */
+    private static void linkOrCopy(Path file, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, file);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Hard link could not be created for " + target + ", copying the file instead: " + e.getMessage());
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Creates the METS file of the record after the uploads, as it refers to the Fedora URLs of the ingested files.
+     */
+    interface MetsFileWriter {
+
+        /**
+         * @return METS file with the Fedora URLs
+         */
+        Path write() throws IOException, UGHException, DAOException, InterruptedException, SwapException;
+    }
+}
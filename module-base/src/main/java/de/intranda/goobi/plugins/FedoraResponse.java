@@ -0,0 +1,58 @@
+package de.intranda.goobi.plugins;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Fully consumed response of a request against the Fedora REST API. The connection is already released when an instance of this class is created,
+ * so it can be passed around freely.
+ */
+public class FedoraResponse {
+
+    private final int status;
+    private final String reasonPhrase;
+    private final Map<String, String> headers;
+    private final String body;
+
+    FedoraResponse(int status, String reasonPhrase, Map<String, String> headers, String body) {
+        this.status = status;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    /**
+     * @param name Header name (case insensitive)
+     * @return Value of the first header with the given name or null
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return Response body, or null if it was not requested
+     */
+    public String getBody() {
+        return body;
+    }
+
+    public boolean isSuccess() {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * @return Message in the form "status: reason phrase - body", as used for log and process log entries
+     */
+    @Override
+    public String toString() {
+        return status + ": " + reasonPhrase + " - " + (body == null ? "" : body);
+    }
+}
@@ -0,0 +1,261 @@
+package de.intranda.goobi.plugins;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A Fedora transaction (fcr:tx) that is kept alive in the background. Fedora reports the expiry of the transaction when it is created and each
+ * time it is refreshed; the refresh is scheduled shortly before that point in time, independent of the progress of the uploads. This also keeps
+ * the transaction open during long uploads of single large files.
+ * <p>
+ * Refreshes are sent once, without the retries of the client, on threads of their own: the scheduler only triggers them. If a refresh gets no
+ * answer within a few seconds, the next one is sent anyway, so a refresh that hangs until the socket timeout neither blocks the refreshes of
+ * other transactions nor lets its own transaction expire.
+ * <p>
+ * Closing a transaction that was neither committed nor rolled back rolls it back.
+ * <p>
+ * The number of transactions open at the same time is limited per Fedora host and shared by all exports in the JVM; {@link #begin(FedoraClient,
+ * String, int)} waits until a transaction slot is free.
+ */
+public class FedoraTransaction implements Closeable {
+
+    private static final Logger log = Logger.getLogger(FedoraTransaction.class);
+
+    /** Fedora's default transaction lifetime, used if the server does not report an expiry */
+    private static final long DEFAULT_LIFETIME_MILLIS = 3 * 60 * 1000L;
+
+    /** Refresh at the latest this long before the transaction expires */
+    private static final long MAX_REFRESH_MARGIN_MILLIS = 30 * 1000L;
+
+    /** Delay before a refresh that failed or did not get an answer yet is tried again */
+    private static final long RETRY_DELAY_MILLIS = 5 * 1000L;
+
+    /** Triggers the refreshes; it never waits for Fedora itself */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fedora-transaction-keepalive");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Sends the refreshes, one thread per refresh in progress */
+    private static final ExecutorService refresher = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fedora-transaction-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Open transaction slots per Fedora host and configured limit */
+    private static final Map<String, Semaphore> transactionSlots = new ConcurrentHashMap<>();
+
+    private final FedoraClient client;
+    /** Client without retries for the refreshes, which are repeated by the transaction itself */
+    private final FedoraClient refreshClient;
+    private final String url;
+    private final Semaphore slot;
+    private ScheduledFuture<?> refreshTask;
+    private boolean finished = false;
+
+    private FedoraTransaction(FedoraClient client, String url, Semaphore slot) {
+        this.client = client;
+        this.refreshClient = client.withRetryPolicy(null);
+        this.url = url;
+        this.slot = slot;
+    }
+
+    /**
+     * Creates a new transaction and starts keeping it alive. If the maximum number of open transactions for the Fedora host is reached, this
+     * method waits until another transaction is finished.
+     *
+     * @param client
+     * @param fedoraUrl REST endpoint of Fedora
+     * @param maxTransactions Maximum number of open transactions against the Fedora host
+     * @return
+     * @throws IOException if the transaction could not be created
+     */
+    public static FedoraTransaction begin(FedoraClient client, String fedoraUrl, int maxTransactions) throws IOException {
+        String host = URI.create(fedoraUrl).getAuthority();
+        Semaphore slot = transactionSlots.computeIfAbsent(host + "|" + maxTransactions, key -> new Semaphore(Math.max(1, maxTransactions), true));
+        try {
+            slot.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free transaction slot on " + host);
+        }
+        FedoraResponse response;
+        try {
+            response = client.post(FedoraClient.path(fedoraUrl, "fcr:tx"), null);
+        } catch (IOException | RuntimeException e) {
+            slot.release();
+            throw e;
+        }
+        if (response.getStatus() >= 400 || response.getHeader("location") == null) {
+            slot.release();
+            throw new IOException("Transaction could not be created: " + response);
+        }
+        FedoraTransaction transaction = new FedoraTransaction(client, response.getHeader("location"), slot);
+        log.debug("Transaction created: " + transaction.url);
+        transaction.scheduleRefresh(getRemainingLifetime(response));
+        return transaction;
+    }
+
+    /**
+     * @return The base URL of the transaction, to be used instead of the Fedora REST endpoint for all requests within the transaction
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Commits the transaction.
+     *
+     * @throws IOException if Fedora did not accept the commit
+     */
+    public synchronized void commit() throws IOException {
+        stopRefresh();
+        try {
+            FedoraResponse response = client.post(FedoraClient.path(url, "fcr:tx", "fcr:commit"), null);
+            if (!response.isSuccess()) {
+                throw new IOException("Transaction could not be committed: " + response);
+            }
+            log.debug("Transaction committed: " + url);
+        } finally {
+            finish();
+        }
+    }
+
+    /**
+     * Rolls the transaction back. Errors are only logged, as the transaction will expire anyway.
+     */
+    public synchronized void rollback() {
+        stopRefresh();
+        // an interrupted export is rolled back as well, so the interrupt status is only restored afterwards
+        boolean interrupted = Thread.interrupted();
+        try {
+            FedoraResponse response = client.post(FedoraClient.path(url, "fcr:tx", "fcr:rollback"), null);
+            if (!response.isSuccess()) {
+                log.error("Transaction could not be rolled back: " + response);
+            }
+        } catch (IOException e) {
+            log.error("Transaction could not be rolled back: " + e.getMessage(), e);
+        } finally {
+            finish();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stops the keep-alive and rolls the transaction back, if it was neither committed nor rolled back.
+     */
+    @Override
+    public synchronized void close() {
+        if (!finished) {
+            rollback();
+        }
+    }
+
+    private void startRefresh() {
+        refresher.execute(this::refresh);
+    }
+
+    private void refresh() {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            // tried again if this refresh fails or hangs; replaced by the regular schedule once it succeeds
+            refreshTask = scheduler.schedule(this::startRefresh, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        // the monitor is not held while waiting for Fedora, so commit and rollback are not delayed by a hanging refresh
+        try {
+            FedoraResponse response = refreshClient.post(FedoraClient.path(url, "fcr:tx"), null);
+            if (client.getMetrics() != null) {
+                client.getMetrics().increment(ExportMetrics.TRANSACTION_REFRESHES);
+            }
+            if (response.isSuccess()) {
+                log.debug("Transaction refreshed: " + url);
+                scheduleRefresh(getRemainingLifetime(response));
+                return;
+            }
+            log.warn("Transaction could not be refreshed: " + response);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Transaction could not be refreshed: " + e.getMessage());
+        }
+        if (client.getMetrics() != null) {
+            client.getMetrics().increment(ExportMetrics.RETRIES);
+        }
+    }
+
+    private synchronized void scheduleRefresh(long remainingLifetime) {
+        if (finished) {
+            return;
+        }
+        stopRefresh();
+        long margin = Math.min(MAX_REFRESH_MARGIN_MILLIS, remainingLifetime / 3);
+        long delay = Math.max(0, remainingLifetime - margin);
+        refreshTask = scheduler.schedule(this::startRefresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Marks the transaction as finished and frees its slot.
+     */
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            slot.release();
+        }
+    }
+
+    private void stopRefresh() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * Determines how long the transaction is valid from the "Expires" header (Fedora 4/5) or "Atomic-Expires" header (Fedora 6). The server's
+     * "Date" header is used as reference, so differences between the clocks of Goobi and Fedora do not matter.
+     *
+     * @param response
+     * @return Remaining lifetime in milliseconds
+     */
+    static long getRemainingLifetime(FedoraResponse response) {
+        String expires = response.getHeader("expires");
+        if (expires == null) {
+            expires = response.getHeader("atomic-expires");
+        }
+        if (expires != null) {
+            try {
+                long expiry = ZonedDateTime.parse(expires, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                long now = System.currentTimeMillis();
+                String date = response.getHeader("date");
+                if (date != null) {
+                    now = ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                }
+                if (expiry > now) {
+                    return expiry - now;
+                }
+            } catch (DateTimeParseException e) {
+                log.debug("Transaction expiry could not be parsed: " + expires);
+            }
+        }
+        return DEFAULT_LIFETIME_MILLIS;
+    }
+}
@@ -0,0 +1,80 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * HTTP entity for a file. Unlike an input stream entity it has an exact Content-Length, so no chunked transfer encoding is used and the server can
+ * reject an upload based on its headers (together with "Expect: 100-continue") before the body is sent. The entity is repeatable, so requests can
+ * be sent again after a failure.
+ * <p>
+ * The content is written with {@link FileChannel#transferTo(long, long, WritableByteChannel)}. The pooled transport only offers an output stream
+ * over its session buffer, not the socket channel, so this is no zero-copy transfer: the file is still copied into the session buffer. The
+ * non-blocking transport does not call {@link #writeTo(OutputStream)} and reads the file itself.
+ */
+public class FileChannelEntity extends AbstractHttpEntity {
+
+    private final Path file;
+    private final long length;
+
+    /**
+     * @param file
+     * @param contentType Mime type of the file
+     * @throws IOException
+     */
+    public FileChannelEntity(Path file, String contentType) throws IOException {
+        this.file = file;
+        this.length = Files.size(file);
+        setContentType(contentType);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return Files.newInputStream(file);
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(outStream);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                long transferred = channel.transferTo(position, length - position, target);
+                if (transferred <= 0) {
+                    // file was truncated while uploading
+                    throw new IOException("Unexpected end of file after " + position + " of " + length + " bytes: " + file);
+                }
+                position += transferred;
+            }
+        }
+        outStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,123 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.log4j.Logger;
+
+import de.sub.goobi.helper.NIOFileUtils;
+
+/**
+ * Packs the OCR results of a process into a single ZIP archive and an index, so the fulltext of a process costs the same few requests however many
+ * pages it has.
+ * <p>
+ * The index is a tab separated text file with one line per entry: name within the archive, offset of the compressed data in the archive,
+ * compressed size and size. A client can fetch the text of a single page with an HTTP range request for the compressed data and inflate it, without
+ * downloading the whole archive.
+ * <p>
+ * The archive only depends on the names, contents and modification times of the files, so an unchanged fulltext results in the same archive and
+ * is recognized by the digest comparison.
+ */
+public class FulltextArchive {
+
+    private static final Logger log = Logger.getLogger(FulltextArchive.class);
+
+    /** Name of the archive binary */
+    public static final String ARCHIVE = "fulltext.zip";
+
+    /** Name of the index binary */
+    public static final String INDEX = "fulltext-index.txt";
+
+    private FulltextArchive() {
+    }
+
+    /**
+     * Packs the files of the given folders into a new temporary folder, which has to be deleted with {@link #delete(Path)}.
+     *
+     * @param folders Folders by the name they get within the archive, e.g. "alto"
+     * @return Temporary folder with the archive and the index, or an empty folder if there are no files
+     * @throws IOException
+     */
+    public static Path pack(Map<String, Path> folders) throws IOException {
+        Path archiveFolder = Files.createTempDirectory("fedora-fulltext");
+        try {
+            List<String> names = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            for (Map.Entry<String, Path> folder : folders.entrySet()) {
+                if (!Files.isDirectory(folder.getValue())) {
+                    continue;
+                }
+                for (Path file : new NIOFileUtils().listFiles(folder.getValue().toString())) {
+                    names.add(folder.getKey() + "/" + file.getFileName());
+                    files.add(file);
+                }
+            }
+            if (files.isEmpty()) {
+                return archiveFolder;
+            }
+            Path archive = archiveFolder.resolve(ARCHIVE);
+            Path index = archiveFolder.resolve(INDEX);
+            long lastModified = 0;
+            try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(archive)));
+                    ZipOutputStream zip = new ZipOutputStream(counter, StandardCharsets.UTF_8);
+                    BufferedWriter writer = Files.newBufferedWriter(index, StandardCharsets.UTF_8)) {
+                zip.setLevel(Deflater.BEST_COMPRESSION);
+                for (int i = 0; i < files.size(); i++) {
+                    Path file = files.get(i);
+                    long modified = Files.getLastModifiedTime(file).toMillis();
+                    lastModified = Math.max(lastModified, modified);
+                    ZipEntry entry = new ZipEntry(names.get(i));
+                    entry.setTime(modified);
+                    // the local header is written right away, so the count is the offset of the compressed data
+                    zip.putNextEntry(entry);
+                    long offset = counter.getByteCount();
+                    Files.copy(file, zip);
+                    zip.closeEntry();
+                    writer.write(names.get(i) + "\t" + offset + "\t" + entry.getCompressedSize() + "\t" + entry.getSize());
+                    writer.newLine();
+                }
+            }
+            // an unchanged fulltext keeps the modification time, so a resumed export can skip the archive
+            Files.setLastModifiedTime(archive, FileTime.fromMillis(lastModified));
+            Files.setLastModifiedTime(index, FileTime.fromMillis(lastModified));
+            log.debug("Fulltext of " + files.size() + " files packed into " + Files.size(archive) + " bytes");
+            return archiveFolder;
+        } catch (IOException | RuntimeException e) {
+            delete(archiveFolder);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes a folder created by {@link #pack(Map)}.
+     *
+     * @param archiveFolder
+     */
+    public static void delete(Path archiveFolder) {
+        try (Stream<Path> files = Files.walk(archiveFolder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    log.warn("Temporary file could not be deleted: " + file);
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Temporary folder could not be deleted: " + archiveFolder + " (" + e.getMessage() + ")");
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Journal of the files of a process that were uploaded into Fedora. Each upload is appended to the journal right away, together with the
+ * transaction it belongs to; a commit of that transaction is appended as a separate line. When an export was interrupted, the next export reads the
+ * journal and skips all files that were committed before and are unchanged since: size and modification time must be the same, and if a digest was
+ * recorded, the file is hashed again and the digest must be the same as well.
+ * <p>
+ * The journal is a tab separated text file. The first line identifies the record the journal belongs to; a journal for a different record (e.g.
+ * after the Fedora URL was changed) is discarded. Upload lines contain transaction, size, modification time, digest (or "-" if no digest was
+ * computed), Fedora URL and the name of the file within the record; commit lines contain the transaction only.
+ */
+public class IngestJournal implements Closeable {
+
+    private static final Logger log = Logger.getLogger(IngestJournal.class);
+
+    private static final String UPLOAD = "F";
+    private static final String COMMIT = "C";
+
+    private final Path journalFile;
+    private final String header;
+    private final Map<String, Entry> committedEntries = new HashMap<>();
+    private final Map<String, Map<String, Entry>> pendingEntries = new HashMap<>();
+    private FileChannel channel;
+
+    /**
+     * Opens the journal and reads the files that were committed by earlier exports of the same record.
+     *
+     * @param journalFile
+     * @param recordUrl URL of the record container outside of any transaction
+     * @throws IOException
+     */
+    public IngestJournal(Path journalFile, String recordUrl) throws IOException {
+        this.journalFile = journalFile;
+        this.header = "# " + recordUrl;
+        load();
+        boolean exists = Files.isRegularFile(journalFile) && !committedEntries.isEmpty();
+        boolean terminated = !exists || endsWithNewline(journalFile);
+        if (!exists) {
+            Files.deleteIfExists(journalFile);
+        }
+        channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (!exists) {
+            append(header);
+        } else if (!terminated) {
+            // terminate a line that was cut off by the interruption
+            append("");
+        }
+        if (!committedEntries.isEmpty()) {
+            log.info("Resuming ingest of " + recordUrl + ", " + committedEntries.size() + " files were already committed");
+        }
+    }
+
+    /**
+     * @return true if files were committed by an earlier, unfinished export
+     */
+    public synchronized boolean isResuming() {
+        return !committedEntries.isEmpty();
+    }
+
+    /**
+     * Returns the Fedora URL of the given file if it was committed by an earlier export and has not been changed since. If a digest was recorded
+     * for the file, the file is hashed again, as a file can be replaced without changing its size and modification time (e.g. when it is
+     * restored or synchronized with the times preserved). The file is only hashed the first time; the result is kept for the rest of the export,
+     * as the file is looked up again when it is planned and when it is uploaded.
+     *
+     * @param name Name of the file within the record, e.g. "master/00000001.tif"
+     * @param file
+     * @param digestCache Digests of the current export, or null if no digests are computed; the recorded digest is then not verified
+     * @return Fedora URL or null if the file needs to be uploaded
+     * @throws IOException
+     */
+    public String getCommittedUrl(String name, Path file, DigestCache digestCache) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = committedEntries.get(name);
+        }
+        if (entry == null || entry.size != Files.size(file) || entry.lastModified != Files.getLastModifiedTime(file).toMillis()) {
+            return null;
+        }
+        if (digestCache != null && !"-".equals(entry.digest)) {
+            Boolean matches;
+            synchronized (this) {
+                matches = entry.digestMatches;
+            }
+            if (matches == null) {
+                // the cached digest only depends on size and modification time as well
+                digestCache.invalidate(file);
+                matches = entry.digest.equalsIgnoreCase(digestCache.getDigest(file));
+                synchronized (this) {
+                    entry.digestMatches = matches;
+                }
+            }
+            if (!matches) {
+                log.debug("File was changed since it was committed, the digest differs: " + file);
+                return null;
+            }
+        }
+        return entry.url;
+    }
+
+    /**
+     * Checks whether a file that is only created by the export, e.g. the fulltext archive, was committed by an earlier export with the given
+     * modification time. Size and digest of such a file are not known before it has been created.
+     *
+     * @param name Name of the file within the record
+     * @param lastModified Modification time the file will have
+     * @return true if the file was committed with this modification time
+     */
+    public synchronized boolean isCommitted(String name, long lastModified) {
+        Entry entry = committedEntries.get(name);
+        return entry != null && entry.lastModified == lastModified;
+    }
+
+    /**
+     * Records an upload within the given transaction.
+     *
+     * @param transactionUrl
+     * @param name Name of the file within the record
+     * @param file
+     * @param digest Hex encoded digest or null
+     * @param url Fedora URL of the uploaded file, outside of the transaction
+     * @throws IOException
+     */
+    public synchronized void recordUpload(String transactionUrl, String name, Path file, String digest, String url) throws IOException {
+        Entry entry = new Entry(Files.size(file), Files.getLastModifiedTime(file).toMillis(), digest == null ? "-" : digest, url);
+        pendingEntries.computeIfAbsent(transactionUrl, key -> new HashMap<>()).put(name, entry);
+        append(UPLOAD + "\t" + transactionUrl + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.digest + "\t" + url + "\t" + name);
+    }
+
+    /**
+     * Records the commit of the given transaction; the journal is forced to disk afterwards.
+     *
+     * @param transactionUrl
+     * @throws IOException
+     */
+    public synchronized void recordCommit(String transactionUrl) throws IOException {
+        Map<String, Entry> entries = pendingEntries.remove(transactionUrl);
+        if (entries != null) {
+            committedEntries.putAll(entries);
+        }
+        append(COMMIT + "\t" + transactionUrl);
+        channel.force(false);
+    }
+
+    /**
+     * Removes the journal once the export is complete.
+     */
+    public synchronized void delete() {
+        close();
+        try {
+            Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            log.warn("Journal could not be deleted: " + journalFile + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Journal could not be closed: " + journalFile + ": " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    private void append(String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static boolean endsWithNewline(Path file) throws IOException {
+        try (SeekableByteChannel in = Files.newByteChannel(file)) {
+            if (in.size() == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            in.position(in.size() - 1).read(last);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(journalFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(header)) {
+                log.debug("Journal belongs to a different record and is discarded: " + journalFile);
+                return;
+            }
+            Map<String, Map<String, Entry>> uncommitted = new HashMap<>();
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", 7);
+                if (parts.length == 7 && parts[0].equals(UPLOAD)) {
+                    uncommitted.computeIfAbsent(parts[1], key -> new HashMap<>())
+                            .put(parts[6], new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4], parts[5]));
+                } else if (parts.length == 2 && parts[0].equals(COMMIT)) {
+                    Map<String, Entry> entries = uncommitted.remove(parts[1]);
+                    if (entries != null) {
+                        committedEntries.putAll(entries);
+                    }
+                }
+                // anything else is a line that was cut off by the interruption
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Journal could not be read from " + journalFile + ", all files will be uploaded again: " + e.getMessage());
+            committedEntries.clear();
+        }
+    }
+
+    private static class Entry {
+
+        private final long size;
+        private final long lastModified;
+        private final String digest;
+        private final String url;
+        /** Result of the comparison of the recorded digest with the file, or null if it has not been compared yet */
+        private Boolean digestMatches;
+
+        private Entry(long size, long lastModified, String digest, String url) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package de.intranda.goobi.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fedora URLs and checksums of the ingested files, keyed by folder (e.g. "master" or "media") and file name without extension, for the rewrite of
+ * the METS file. The file entries of the METS file are matched by name, so neither the listing order of the folders nor the order in which
+ * concurrent uploads finish matter. The extension is ignored because Goobi writes the configured suffix of the file group instead of the actual
+ * one.
+ * <p>
+ * Up to a configurable number of entries are kept in a hash map. Beyond that, the entries are moved to a temporary file of length-prefixed records,
+ * and only a 64-bit hash of each key and the position of its record are kept in memory, in an open addressing table of two long arrays. A lookup
+ * then reads a single record from the file (usually from the page cache).
+ */
+public class IngestManifest implements Closeable {
+
+    private static final Logger log = Logger.getLogger(IngestManifest.class);
+
+    private static final long EMPTY = -1;
+
+    private final int maxMemoryEntries;
+    private final Path spillDirectory;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Set<String> folders = new HashSet<>();
+
+    private Path spillFile;
+    private FileChannel spill;
+    private long spillSize = 0;
+    private long[] hashes;
+    private long[] positions;
+    private int spilledEntries = 0;
+
+    /**
+     * @param maxMemoryEntries Number of entries kept in memory before they are moved to a file, 0 to always keep them in memory
+     * @param spillDirectory Folder of the temporary file, or null for the default temporary folder
+     */
+    public IngestManifest(int maxMemoryEntries, Path spillDirectory) {
+        this.maxMemoryEntries = maxMemoryEntries;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Adds an ingested file; an earlier entry of the same folder and name is replaced.
+     *
+     * @param folder Fedora container of the file, e.g. "master"
+     * @param fileName Name of the file
+     * @param url Fedora URL of the file
+     * @param checksum Hex encoded checksum of the file, or null
+     * @throws IOException
+     */
+    public synchronized void put(String folder, String fileName, String url, String checksum) throws IOException {
+        String key = getKey(folder, fileName);
+        Entry entry = new Entry(url, checksum);
+        folders.add(folder);
+        if (spill == null) {
+            if (entries.put(key, entry) != null) {
+                log.debug("Manifest entry replaced: " + key);
+            }
+            if (maxMemoryEntries > 0 && entries.size() > maxMemoryEntries) {
+                moveToFile();
+            }
+        } else {
+            write(key, entry);
+        }
+    }
+
+    /**
+     * @param folder Fedora container of the file
+     * @param fileName Name of the file; the extension is ignored
+     * @return Entry of the file, or null if no such file was ingested
+     * @throws IOException
+     */
+    public synchronized Entry get(String folder, String fileName) throws IOException {
+        String key = getKey(folder, fileName);
+        if (spill == null) {
+            return entries.get(key);
+        }
+        long hash = hash(key);
+        int mask = hashes.length - 1;
+        for (int slot = slot(hash, mask); positions[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash) {
+                Record record = read(positions[slot]);
+                // a different key with the same hash is practically impossible, but must not return a wrong URL
+                return key.equals(record.key) ? record.entry : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param folder
+     * @return true if at least one file of the folder was ingested
+     */
+    public synchronized boolean containsFolder(String folder) {
+        return folders.contains(folder);
+    }
+
+    /**
+     * @return Number of files
+     */
+    public synchronized int size() {
+        return spill == null ? entries.size() : spilledEntries;
+    }
+
+    /**
+     * Deletes the temporary file, if any.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        entries.clear();
+        folders.clear();
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            Files.deleteIfExists(spillFile);
+        }
+    }
+
+    static String getKey(String folder, String fileName) {
+        int index = fileName.lastIndexOf('.');
+        return folder + "/" + (index > 0 ? fileName.substring(0, index) : fileName);
+    }
+
+    private void moveToFile() throws IOException {
+        spillFile = spillDirectory == null ? Files.createTempFile("fedora-manifest", ".bin")
+                : Files.createTempFile(spillDirectory, "fedora-manifest", ".bin");
+        spill = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        allocate(Integer.highestOneBit(Math.max(16, entries.size() * 4)));
+        log.debug("Manifest of " + entries.size() + " files moved to " + spillFile);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+        entries.clear();
+    }
+
+    private void write(String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeUTF(key);
+            out.writeUTF(entry.url);
+            out.writeBoolean(entry.checksum != null);
+            if (entry.checksum != null) {
+                out.writeUTF(entry.checksum);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        buffer.putInt(0, buffer.limit() - Integer.BYTES);
+        long position = spillSize;
+        while (buffer.hasRemaining()) {
+            spillSize += spill.write(buffer, spillSize);
+        }
+        if ((spilledEntries + 1) * 2 > hashes.length) {
+            rehash();
+        }
+        if (insert(hash(key), position)) {
+            spilledEntries++;
+        }
+    }
+
+    private Record read(long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(length, position);
+        ByteBuffer buffer = ByteBuffer.allocate(length.getInt(0));
+        readFully(buffer, position + Integer.BYTES);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array()))) {
+            String key = in.readUTF();
+            String url = in.readUTF();
+            String checksum = in.readBoolean() ? in.readUTF() : null;
+            return new Record(key, new Entry(url, checksum));
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = spill.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Manifest file " + spillFile + " is truncated");
+            }
+        }
+    }
+
+    /**
+     * @return true if the hash was added, false if the position of an existing entry was replaced
+     */
+    private boolean insert(long hash, long position) {
+        int mask = hashes.length - 1;
+        int slot = slot(hash, mask);
+        while (positions[slot] != EMPTY) {
+            if (hashes[slot] == hash) {
+                positions[slot] = position;
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        positions[slot] = position;
+        return true;
+    }
+
+    private void rehash() {
+        long[] oldHashes = hashes;
+        long[] oldPositions = positions;
+        allocate(oldHashes.length * 2);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldPositions[i] != EMPTY) {
+                insert(oldHashes[i], oldPositions[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        positions = new long[capacity];
+        Arrays.fill(positions, EMPTY);
+    }
+
+    private static int slot(long hash, int mask) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the key.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Fedora URL and checksum of an ingested file.
+     */
+    public static class Entry {
+
+        private final String url;
+        private final String checksum;
+
+        Entry(String url, String checksum) {
+            this.url = url;
+            this.checksum = checksum;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return Hex encoded checksum, or null if it is not known
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+    }
+
+    private static class Record {
+
+        private final String key;
+        private final Entry entry;
+
+        private Record(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package de.intranda.goobi.plugins;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Planned work of an export: the action for each file of the master and media folders, and the totals of files, bytes and requests. The plan is
+ * made before the upload of each folder, and on its own by a dry run, which reports the totals and an estimate of the duration without changing
+ * anything in Fedora.
+ */
+public class IngestPlan {
+
+    /** Requests of an export that do not depend on the files: transaction, containers, METS file, commit */
+    private static final int FIXED_REQUESTS = 6;
+
+    /**
+     * Action for a single file.
+     */
+    public enum Action {
+        /** The file does not exist in Fedora yet */
+        NEW("new"),
+        /** The file exists in Fedora and is uploaded again (new version, replacement or changed content) */
+        CHANGED("changed"),
+        /** The file is skipped, because Fedora holds the same content or an earlier export committed it */
+        UNCHANGED("unchanged"),
+        /** The binary is deleted from Fedora, because the local file no longer exists */
+        DELETE("to delete");
+
+        private final String label;
+
+        Action(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Map<String, Folder> folders = new LinkedHashMap<>();
+    private final long[] counts = new long[Action.values().length];
+    private final long[] bytes = new long[Action.values().length];
+    private long transferBytes = 0;
+    private long requests;
+    private int processes;
+
+    /**
+     * Creates the plan of a single process.
+     */
+    public IngestPlan() {
+        this(1);
+    }
+
+    private IngestPlan(int processes) {
+        this.processes = processes;
+        this.requests = (long) processes * FIXED_REQUESTS;
+    }
+
+    /**
+     * @return Empty plan that adds up the totals of the plans of several processes
+     */
+    public static IngestPlan forBatch() {
+        return new IngestPlan(0);
+    }
+
+    /**
+     * Adds the plan of a folder.
+     *
+     * @param folder
+     */
+    public synchronized void add(Folder folder) {
+        folders.put(folder.label, folder);
+        for (FileAction file : folder.files) {
+            counts[file.action.ordinal()]++;
+            bytes[file.action.ordinal()] += file.size;
+            if (file.isTransferred()) {
+                transferBytes += file.size;
+            }
+        }
+        requests += folder.requests;
+    }
+
+    /**
+     * Adds the totals of the plan of another process, for the summary of a batch.
+     *
+     * @param other
+     */
+    public synchronized void addTotals(IngestPlan other) {
+        synchronized (other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+                bytes[i] += other.bytes[i];
+            }
+            transferBytes += other.transferBytes;
+            requests += other.requests;
+            processes += other.processes;
+        }
+    }
+
+    /**
+     * @param label Name of the folder, e.g. "master"
+     * @return Plan of the folder, or null
+     */
+    public synchronized Folder getFolder(String label) {
+        return folders.get(label);
+    }
+
+    public synchronized long getCount(Action action) {
+        return counts[action.ordinal()];
+    }
+
+    public synchronized long getBytes(Action action) {
+        return bytes[action.ordinal()];
+    }
+
+    /**
+     * @return Bytes sent to Fedora; files ingested by reference are not transferred
+     */
+    public synchronized long getTransferBytes() {
+        return transferBytes;
+    }
+
+    /**
+     * @return Estimated number of requests
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /**
+     * Returns a single line summary for the process log.
+     *
+     * @param history Throughput of earlier exports, or null
+     * @return
+     */
+    public synchronized String getSummary(ThroughputHistory history) {
+        StringBuilder sb = new StringBuilder("Fedora export plan");
+        if (processes > 1) {
+            sb.append(" for ").append(processes).append(" processes");
+        }
+        sb.append(':');
+        String separator = " ";
+        for (Action action : Action.values()) {
+            sb.append(separator).append(counts[action.ordinal()]).append(' ').append(action.label);
+            if (action != Action.UNCHANGED && bytes[action.ordinal()] > 0) {
+                sb.append(" (").append(ExportMetrics.formatBytes(bytes[action.ordinal()])).append(')');
+            }
+            separator = ", ";
+        }
+        sb.append("; ").append(ExportMetrics.formatBytes(transferBytes)).append(" to transfer in about ").append(requests).append(" requests");
+        long millis = history == null ? -1 : history.estimateMillis(transferBytes, requests);
+        if (millis >= 0) {
+            sb.append("; estimated duration ").append(formatDuration(millis));
+        } else {
+            sb.append("; no earlier exports to estimate the duration");
+        }
+        return sb.toString();
+    }
+
+    private static String formatDuration(long millis) {
+        long minutes = Math.round(millis / 60000.0);
+        if (minutes < 1) {
+            return ExportMetrics.formatMillis(millis);
+        }
+        if (minutes < 60) {
+            return minutes + " min";
+        }
+        return String.format(Locale.ENGLISH, "%d h %02d min", minutes / 60, minutes % 60);
+    }
+
+    /**
+     * Plan of a single folder.
+     */
+    public static class Folder {
+
+        private final String label;
+        private final ContainerIndex existingFiles;
+        private final List<FileAction> files = new ArrayList<>();
+        private long requests = 0;
+
+        /**
+         * @param label Name of the folder in Fedora
+         * @param existingFiles Resources of the container in Fedora, or null if it could not be listed
+         */
+        public Folder(String label, ContainerIndex existingFiles) {
+            this.label = label;
+            this.existingFiles = existingFiles;
+        }
+
+        /**
+         * @param file Local file, or null for a binary that is deleted
+         * @param name File name
+         * @param size Size of the local file
+         * @param action
+         * @param byReference true if the file is ingested as external content
+         * @param fileRequests Estimated number of requests for the file
+         */
+        public void add(Path file, String name, long size, Action action, boolean byReference, int fileRequests) {
+            files.add(new FileAction(file, name, size, action, byReference));
+            requests += fileRequests;
+        }
+
+        /**
+         * Adds the requests that do not belong to a single file, e.g. the listing of the container or the commits of chunks.
+         *
+         * @param count
+         */
+        public void addRequests(int count) {
+            requests += count;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public ContainerIndex getExistingFiles() {
+            return existingFiles;
+        }
+
+        /**
+         * @return Local files in the order of the folder listing, including those that are skipped by the upload
+         */
+        public List<Path> getLocalFiles() {
+            List<Path> result = new ArrayList<>(files.size());
+            for (FileAction file : files) {
+                if (file.file != null) {
+                    result.add(file.file);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return Names of the binaries that are deleted from Fedora
+         */
+        public List<String> getDeletions() {
+            List<String> result = new ArrayList<>();
+            for (FileAction file : files) {
+                if (file.action == Action.DELETE) {
+                    result.add(file.name);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Orders the given files with the largest file first. Concurrent uploads then start with the files that take longest, and the small files
+         * fill the gaps at the end, instead of a large file being uploaded alone while the other uploads are idle.
+         *
+         * @param localFiles Files of this folder
+         * @return
+         */
+        public List<Path> getLargestFirst(List<Path> localFiles) {
+            Map<Path, Long> sizes = new LinkedHashMap<>();
+            for (FileAction file : files) {
+                if (file.file != null) {
+                    sizes.put(file.file, file.size);
+                }
+            }
+            List<Path> result = new ArrayList<>(localFiles);
+            // stable, so files of equal size keep the listing order
+            Collections.sort(result, Comparator.comparingLong((Path file) -> sizes.getOrDefault(file, 0L)).reversed());
+            return result;
+        }
+    }
+
+    /**
+     * Planned action for a single file.
+     */
+    public static class FileAction {
+
+        private final Path file;
+        private final String name;
+        private final long size;
+        private final Action action;
+        private final boolean byReference;
+
+        private FileAction(Path file, String name, long size, Action action, boolean byReference) {
+            this.file = file;
+            this.name = name;
+            this.size = size;
+            this.action = action;
+            this.byReference = byReference;
+        }
+
+        private boolean isTransferred() {
+            return !byReference && (action == Action.NEW || action == Action.CHANGED);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s %s (%d bytes)", action.label, name, size);
+        }
+    }
+}
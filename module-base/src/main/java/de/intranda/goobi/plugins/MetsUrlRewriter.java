@@ -0,0 +1,261 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Rewrites the file URLs (FLocat/@xlink:href) of the PRESENTATION and FEDORA file groups of a METS file in a single streaming pass. Memory usage
+ * does not depend on the size of the file section. Each file entry is matched by the file name of its original location with the ingested files
+ * in the manifest, so the order of the file entries does not matter. If the manifest holds checksums, they are written to the CHECKSUM and
+ * CHECKSUMTYPE attributes of the rewritten file entries.
+ * <p>
+ * File entries without an ingested file keep their location. They are counted, and the first of them are kept for the error message, see
+ * {@link #getUnmatchedFiles()}.
+ */
+public class MetsUrlRewriter {
+
+    private static final String METS_NS = "http://www.loc.gov/METS/";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+
+    private static final QName USE = new QName("USE");
+    private static final QName HREF = new QName(XLINK_NS, "href");
+    private static final QName CHECKSUM = new QName("CHECKSUM");
+    private static final QName CHECKSUMTYPE = new QName("CHECKSUMTYPE");
+
+    /** Number of unmatched file locations kept for the error message */
+    private static final int MAX_REPORTED = 10;
+
+    private final IngestManifest manifest;
+    private final List<String> folders;
+    private final String checksumType;
+    private final List<String> unmatchedFiles = new ArrayList<>();
+
+    /**
+     * @param manifest Ingested files
+     * @param folders Folders of the manifest in which the files are looked up, in order of preference
+     * @param checksumType METS name of the checksum algorithm, e.g. "SHA-256", or null to omit the checksums
+     */
+    public MetsUrlRewriter(IngestManifest manifest, List<String> folders, String checksumType) {
+        this.manifest = manifest;
+        this.folders = folders;
+        this.checksumType = checksumType;
+    }
+
+    /**
+     * Reads the METS file from source and writes the rewritten document to target. The target is written in place, so an existing file is
+     * truncated first.
+     *
+     * @param source
+     * @param target
+     * @return Number of file entries that do not match an ingested file
+     * @throws IOException
+     */
+    public int rewrite(Path source, Path target) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source));
+                OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+            return rewrite(in, out);
+        }
+    }
+
+    /**
+     * Reads the METS document from the given stream and writes the rewritten document to the output stream.
+     *
+     * @param in
+     * @param out
+     * @return Number of file entries that do not match an ingested file
+     * @throws IOException
+     */
+    public int rewrite(InputStream in, OutputStream out) throws IOException {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+        XMLEventReader reader = null;
+        XMLEventWriter writer = null;
+        try {
+            reader = inputFactory.createXMLEventReader(in);
+            writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, StandardCharsets.UTF_8.name());
+
+            boolean inFileSec = false;
+            boolean rewriteGroup = false;
+            // events of a file entry are held back until its location is known, as the checksum is an attribute of the entry
+            List<XMLEvent> pending = new ArrayList<>();
+            int unmatched = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement element = event.asStartElement();
+                    if (isMets(element.getName(), "fileSec")) {
+                        inFileSec = true;
+                    } else if (inFileSec && isMets(element.getName(), "fileGrp")) {
+                        Attribute use = element.getAttributeByName(USE);
+                        rewriteGroup = use != null && ("PRESENTATION".equals(use.getValue()) || "FEDORA".equals(use.getValue()));
+                    } else if (rewriteGroup && isMets(element.getName(), "file")) {
+                        pending.add(event);
+                        continue;
+                    } else if (!pending.isEmpty() && isMets(element.getName(), "FLocat")) {
+                        Attribute href = element.getAttributeByName(HREF);
+                        IngestManifest.Entry entry = href == null ? null : lookup(getFileName(href.getValue()));
+                        if (entry != null) {
+                            event = replaceHref(eventFactory, element, getFileUrl(entry.getUrl()));
+                            if (entry.getChecksum() != null && checksumType != null) {
+                                pending.set(0, setChecksum(eventFactory, pending.get(0).asStartElement(), entry.getChecksum(), checksumType));
+                            }
+                        } else {
+                            unmatched++;
+                            if (unmatchedFiles.size() < MAX_REPORTED) {
+                                unmatchedFiles.add(href == null ? "(no location)" : href.getValue());
+                            }
+                        }
+                        flush(writer, pending);
+                    }
+                } else if (event.isEndElement()) {
+                    QName name = event.asEndElement().getName();
+                    if (isMets(name, "fileSec")) {
+                        inFileSec = false;
+                    } else if (isMets(name, "fileGrp")) {
+                        rewriteGroup = false;
+                    } else if (isMets(name, "file")) {
+                        // file entry without location
+                        flush(writer, pending);
+                    }
+                }
+                if (!pending.isEmpty()) {
+                    pending.add(event);
+                } else {
+                    writer.add(event);
+                }
+            }
+            flush(writer, pending);
+            writer.flush();
+            return unmatched;
+        } catch (XMLStreamException e) {
+            throw new IOException("METS file could not be rewritten: " + e.getMessage(), e);
+        } finally {
+            close(reader, writer);
+        }
+    }
+
+    /**
+     * @return Locations of the first file entries of the last rewrite that do not match an ingested file
+     */
+    public List<String> getUnmatchedFiles() {
+        return unmatchedFiles;
+    }
+
+    private IngestManifest.Entry lookup(String fileName) throws IOException {
+        for (String folder : folders) {
+            IngestManifest.Entry entry = manifest.get(folder, fileName);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param href Location of a file entry
+     * @return Decoded last path segment of the location
+     */
+    static String getFileName(String href) {
+        String name = href.substring(href.lastIndexOf('/') + 1);
+        if (name.indexOf('%') >= 0) {
+            try {
+                name = URLDecoder.decode(name.replace("+", "%2B"), StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                // not encoded, use as it is
+            }
+        }
+        return name;
+    }
+
+    private static void flush(XMLEventWriter writer, List<XMLEvent> pending) throws XMLStreamException {
+        for (XMLEvent event : pending) {
+            writer.add(event);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Cuts off the version path of the URL, so that the METS file always points to the current version.
+     *
+     * @param url
+     * @return
+     */
+    static String getFileUrl(String url) {
+        if (url.contains("/fcr:versions")) {
+            return url.substring(0, url.indexOf("/fcr:versions"));
+        }
+        return url;
+    }
+
+    private static boolean isMets(QName name, String localPart) {
+        return METS_NS.equals(name.getNamespaceURI()) && localPart.equals(name.getLocalPart());
+    }
+
+    private static StartElement replaceHref(XMLEventFactory eventFactory, StartElement element, String url) {
+        List<Attribute> attributes = new ArrayList<>();
+        boolean replaced = false;
+        for (Iterator<?> it = element.getAttributes(); it.hasNext();) {
+            Attribute attribute = (Attribute) it.next();
+            if (HREF.equals(attribute.getName())) {
+                attributes.add(eventFactory.createAttribute(attribute.getName(), url));
+                replaced = true;
+            } else {
+                attributes.add(attribute);
+            }
+        }
+        if (!replaced) {
+            attributes.add(eventFactory.createAttribute("xlink", XLINK_NS, "href", url));
+        }
+        return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    private static StartElement setChecksum(XMLEventFactory eventFactory, StartElement element, String checksum, String checksumType) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<?> it = element.getAttributes(); it.hasNext();) {
+            Attribute attribute = (Attribute) it.next();
+            if (!CHECKSUM.equals(attribute.getName()) && !CHECKSUMTYPE.equals(attribute.getName())) {
+                attributes.add(attribute);
+            }
+        }
+        attributes.add(eventFactory.createAttribute(CHECKSUM, checksum));
+        attributes.add(eventFactory.createAttribute(CHECKSUMTYPE, checksumType));
+        return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    private static void close(XMLEventReader reader, XMLEventWriter writer) throws IOException {
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Determines the mime types of the uploaded files. Results are cached per folder and file extension, so usually only the first file of each type in
+ * a folder is inspected. Inspection reads a few bytes of the file separately and never touches the stream used for the upload.
+ * <p>
+ * The order of resolution is: configured mapping for the extension, cached result for folder and extension, magic bytes of the file, the
+ * platform's file type detection and finally a fixed mapping of common extensions.
+ */
+public class MimeTypeResolver {
+
+    private static final Logger log = Logger.getLogger(MimeTypeResolver.class);
+
+    private static final int MAGIC_LENGTH = 16;
+
+    private final Map<String, String> configuredTypes;
+    private final Map<String, String> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @param mappings Configured mappings in the form "extension=mime/type"; they take precedence over any detection
+     */
+    public MimeTypeResolver(String[] mappings) {
+        configuredTypes = new HashMap<>();
+        if (mappings != null) {
+            for (String mapping : mappings) {
+                int index = mapping.indexOf('=');
+                if (index > 0) {
+                    configuredTypes.put(mapping.substring(0, index).trim().toLowerCase(Locale.ENGLISH), mapping.substring(index + 1).trim());
+                } else {
+                    log.warn("Invalid mime type mapping ignored: " + mapping);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the mime type of the given file.
+     *
+     * @param file
+     * @return
+     */
+    public String getMimeType(Path file) {
+        String extension = FilenameUtils.getExtension(file.getFileName().toString()).toLowerCase(Locale.ENGLISH);
+        String configuredType = configuredTypes.get(extension);
+        if (configuredType != null) {
+            return configuredType;
+        }
+        return cache.computeIfAbsent(file.toAbsolutePath().getParent() + "|" + extension, key -> detectMimeType(file, extension));
+    }
+
+    private static String detectMimeType(Path file, String extension) {
+        String mimeType = null;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] magic = new byte[MAGIC_LENGTH];
+            int length = in.readNBytes(magic, 0, MAGIC_LENGTH);
+            mimeType = getMimeTypeFromMagicBytes(magic, length);
+        } catch (IOException e) {
+            log.debug("Magic bytes could not be read from " + file + ": " + e.getMessage());
+        }
+        if (mimeType == null) {
+            try {
+                mimeType = Files.probeContentType(file);
+            } catch (IOException e) {
+                log.debug("Mime type could not be probed for " + file + ": " + e.getMessage());
+            }
+        }
+        if (mimeType == null) {
+            mimeType = getMimeTypeFromExtension(extension);
+            log.debug("Manually determined mime type: " + mimeType);
+        }
+        log.debug("Mime type for *." + extension + " in " + file.getParent() + ": " + mimeType);
+        return mimeType;
+    }
+
+    /**
+     * Recognizes the file formats commonly found in Goobi image and metadata folders by their first bytes.
+     *
+     * @param magic
+     * @param length Number of valid bytes
+     * @return Mime type or null if the format is not recognized
+     */
+    static String getMimeTypeFromMagicBytes(byte[] magic, int length) {
+        if (startsWith(magic, length, 0x49, 0x49, 0x2A, 0x00) || startsWith(magic, length, 0x4D, 0x4D, 0x00, 0x2A)) {
+            return "image/tiff";
+        }
+        if (startsWith(magic, length, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(magic, length, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "image/png";
+        }
+        if (startsWith(magic, length, 0x00, 0x00, 0x00, 0x0C, 'j', 'P', 0x20, 0x20) || startsWith(magic, length, 0xFF, 0x4F, 0xFF, 0x51)) {
+            return "image/jp2";
+        }
+        if (startsWith(magic, length, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(magic, length, '%', 'P', 'D', 'F')) {
+            return "application/pdf";
+        }
+        if (startsWith(magic, length, '<', '?', 'x', 'm', 'l') || startsWith(magic, length, 0xEF, 0xBB, 0xBF, '<', '?', 'x', 'm', 'l')) {
+            return "text/xml";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] data, int length, int... prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if ((data[i] & 0xFF) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Manual fallback (using the file extension), e.g. for Macs where the platform detection does not know image types.
+     *
+     * @param extension
+     * @return
+     */
+    static String getMimeTypeFromExtension(String extension) {
+        switch (extension) {
+            case "tif":
+            case "tiff":
+                return "image/tiff";
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "xml":
+                return "text/xml";
+            default:
+                return "text/html";
+        }
+    }
+}
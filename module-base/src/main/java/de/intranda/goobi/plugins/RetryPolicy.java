@@ -0,0 +1,128 @@
+package de.intranda.goobi.plugins;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpConnectTimeoutException;
+import java.nio.file.FileSystemException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Decides which failed Fedora requests are sent again and how long to wait before. Transient failures are responses with the status 429, 502, 503
+ * or 504 and network errors such as timeouts or reset connections. Requests with an idempotent method (GET, HEAD, PUT, DELETE) are repeated after
+ * any transient failure; POST requests only if Fedora cannot have processed them, i.e. after 429, 503 or a failed connection attempt.
+ * <p>
+ * The delay grows exponentially with each attempt and is randomized (between half and the full delay), so concurrent exports do not retry in
+ * lockstep. A "Retry-After" header of Fedora is respected.
+ */
+public class RetryPolicy {
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int circuitBreakerFailures;
+    private final long circuitBreakerMillis;
+
+    /**
+     * @param maxRetries Number of times a request is repeated, 0 to disable retries
+     * @param baseDelayMillis Delay before the first retry
+     * @param maxDelayMillis Upper limit of the delay
+     * @param circuitBreakerFailures Number of consecutive transient failures after which requests to the Fedora host are suspended, 0 to disable
+     *            the circuit breaker
+     * @param circuitBreakerSeconds Time requests are suspended
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis, int circuitBreakerFailures, int circuitBreakerSeconds) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.circuitBreakerFailures = circuitBreakerFailures;
+        this.circuitBreakerMillis = circuitBreakerSeconds * 1000L;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param url Request URL
+     * @return Circuit breaker shared by all exports to the host of the URL, or null if it is disabled
+     */
+    public CircuitBreaker getCircuitBreaker(String url) {
+        if (circuitBreakerFailures <= 0) {
+            return null;
+        }
+        return CircuitBreaker.forUrl(url, circuitBreakerFailures, circuitBreakerMillis);
+    }
+
+    /**
+     * @param status HTTP status of a response
+     * @return true if the status indicates an overloaded or temporarily unavailable Fedora
+     */
+    public boolean isTransient(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @param e Exception thrown while sending a request
+     * @return true if the exception is a network error that may not occur again; errors reading the local file, an interrupted thread, an
+     *         unknown host or a TLS failure are not transient
+     */
+    public boolean isTransient(IOException e) {
+        if (e instanceof FileNotFoundException || e instanceof FileSystemException || e instanceof UnknownHostException
+                || e instanceof SSLException) {
+            return false;
+        }
+        if (e instanceof InterruptedIOException) {
+            // timeouts are subclasses of InterruptedIOException, an interrupted thread has to stop
+            return e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException;
+        }
+        return true;
+    }
+
+    /**
+     * @param method HTTP method
+     * @param status Status of the failed response
+     * @return true if the request may be sent again
+     */
+    public boolean isRetryable(String method, int status) {
+        return isTransient(status) && (isIdempotent(method) || status == 429 || status == 503);
+    }
+
+    /**
+     * @param method HTTP method
+     * @param e Exception thrown while sending the request
+     * @return true if the request may be sent again
+     */
+    public boolean isRetryable(String method, IOException e) {
+        return isTransient(e) && (isIdempotent(method) || e instanceof ConnectException || e instanceof ConnectTimeoutException
+                || e instanceof HttpConnectTimeoutException);
+    }
+
+    /**
+     * @param attempt Number of the failed attempt, starting with 0
+     * @param retryAfter Value of the "Retry-After" header, or null
+     * @return Delay in milliseconds before the next attempt
+     */
+    public long getDelayMillis(int attempt, String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return Math.min(maxDelayMillis, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                // HTTP date, use the computed delay instead
+            }
+        }
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static boolean isIdempotent(String method) {
+        return !"POST".equals(method) && !"PATCH".equals(method);
+    }
+}
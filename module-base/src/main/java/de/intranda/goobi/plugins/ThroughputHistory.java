@@ -0,0 +1,162 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Transferred bytes, number of requests and duration of the last successful exports, shared by all exports that use the same file. The duration of
+ * a planned export is estimated from them with a least squares fit of the model "duration = bytes / throughput + requests * time per request", so
+ * the estimate reflects both the bandwidth and the latency of Fedora as experienced by real exports.
+ * <p>
+ * The history is a text file with one line per export: time of the export, bytes, requests and duration in milliseconds, separated by spaces.
+ */
+public class ThroughputHistory {
+
+    private static final Logger log = Logger.getLogger(ThroughputHistory.class);
+
+    /** Number of exports kept in the history */
+    private static final int MAX_SAMPLES = 50;
+
+    /** Guards the history files of all instances */
+    private static final Object LOCK = new Object();
+
+    private final Path historyFile;
+
+    /**
+     * @param historyFile
+     */
+    public ThroughputHistory(Path historyFile) {
+        this.historyFile = historyFile;
+    }
+
+    /**
+     * @param config Plugin configuration
+     * @return History of the configured file, or null if no history is kept
+     */
+    public static ThroughputHistory create(ExportConfiguration config) {
+        String historyFile = config.getHistoryFile();
+        return historyFile == null || historyFile.isBlank() ? null : new ThroughputHistory(Paths.get(historyFile));
+    }
+
+    /**
+     * Adds a successful export to the history; the oldest exports are dropped.
+     *
+     * @param bytes Bytes sent to Fedora
+     * @param requests Number of requests
+     * @param millis Duration of the export
+     */
+    public void record(long bytes, long requests, long millis) {
+        if (millis <= 0 || (bytes <= 0 && requests <= 0)) {
+            return;
+        }
+        synchronized (LOCK) {
+            try {
+                List<long[]> samples = load();
+                samples.add(new long[] { System.currentTimeMillis(), bytes, requests, millis });
+                List<long[]> kept = samples.subList(Math.max(0, samples.size() - MAX_SAMPLES), samples.size());
+                Path tempFile = historyFile.resolveSibling(historyFile.getFileName() + ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (long[] sample : kept) {
+                        writer.write(sample[0] + " " + sample[1] + " " + sample[2] + " " + sample[3]);
+                        writer.newLine();
+                    }
+                }
+                Files.move(tempFile, historyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Export history could not be written to " + historyFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Estimates the duration of an export.
+     *
+     * @param bytes Bytes to send to Fedora
+     * @param requests Number of requests
+     * @return Estimated duration in milliseconds, or -1 if there are no earlier exports
+     */
+    public long estimateMillis(long bytes, long requests) {
+        List<long[]> samples;
+        synchronized (LOCK) {
+            try {
+                samples = load();
+            } catch (IOException e) {
+                log.warn("Export history could not be read from " + historyFile + ": " + e.getMessage());
+                return -1;
+            }
+        }
+        if (samples.isEmpty()) {
+            return -1;
+        }
+        // sums for the normal equations, bytes in megabytes to keep the values in a reasonable range
+        double bb = 0;
+        double br = 0;
+        double rr = 0;
+        double bt = 0;
+        double rt = 0;
+        double tt = 0;
+        for (long[] sample : samples) {
+            double b = sample[1] / (1024.0 * 1024);
+            double r = sample[2];
+            double t = sample[3];
+            bb += b * b;
+            br += b * r;
+            rr += r * r;
+            bt += b * t;
+            rt += r * t;
+            tt += t * t;
+        }
+        double millisPerMegabyte;
+        double millisPerRequest;
+        double determinant = bb * rr - br * br;
+        double x = determinant > 1e-9 * bb * rr ? (bt * rr - rt * br) / determinant : -1;
+        double y = determinant > 1e-9 * bb * rr ? (rt * bb - bt * br) / determinant : -1;
+        if (x >= 0 && y >= 0) {
+            millisPerMegabyte = x;
+            millisPerRequest = y;
+        } else {
+            // the exports do not tell bandwidth and latency apart (e.g. all of similar shape), use the better of the two single factors
+            double bytesOnly = bb > 0 ? bt / bb : 0;
+            double requestsOnly = rr > 0 ? rt / rr : 0;
+            double bytesError = tt - 2 * bytesOnly * bt + bytesOnly * bytesOnly * bb;
+            double requestsError = tt - 2 * requestsOnly * rt + requestsOnly * requestsOnly * rr;
+            if (bb > 0 && (rr == 0 || bytesError <= requestsError)) {
+                millisPerMegabyte = bytesOnly;
+                millisPerRequest = 0;
+            } else {
+                millisPerMegabyte = 0;
+                millisPerRequest = requestsOnly;
+            }
+        }
+        return Math.round(bytes / (1024.0 * 1024) * millisPerMegabyte + requests * millisPerRequest);
+    }
+
+    private List<long[]> load() throws IOException {
+        List<long[]> samples = new ArrayList<>();
+        if (!Files.isRegularFile(historyFile)) {
+            return samples;
+        }
+        for (String line : Files.readAllLines(historyFile, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 4) {
+                continue;
+            }
+            try {
+                samples.add(new long[] { Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Long.parseLong(fields[3]) });
+            } catch (NumberFormatException e) {
+                log.debug("Invalid line in export history ignored: " + line);
+            }
+        }
+        return samples;
+    }
+}
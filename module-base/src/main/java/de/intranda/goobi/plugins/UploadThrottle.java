@@ -0,0 +1,288 @@
+package de.intranda.goobi.plugins;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the uploads of an export. The number of concurrent uploads and the byte rate are taken from the profile for the current time of day,
+ * so an export can use more of Fedora at night than during the day, when the repository also serves the Goobi viewer.
+ * <p>
+ * With adaptive concurrency, the number of concurrent uploads is controlled like a TCP congestion window (AIMD): it grows by one per round of
+ * uploads that finish within the target latency, and is halved if an upload takes longer, fails, or Fedora answers with 429 or 503. It never
+ * exceeds the maximum of the profile. The target latency is a duration per megabyte, so a large file does not count as congestion only because it
+ * takes long to send; a file below one megabyte counts as one megabyte.
+ * <p>
+ * The byte rate is limited for all exports of the JVM together: the start of each upload is delayed until the uploads before it could have been
+ * sent at the configured rate.
+ */
+public class UploadThrottle {
+
+    private static final Logger log = Logger.getLogger(UploadThrottle.class);
+
+    /** Factor the concurrency is reduced by on congestion */
+    private static final double DECREASE_FACTOR = 0.5;
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    /** Time the byte rate limit of all exports is reached again, in System.nanoTime() */
+    private static long nextFreeNanos = 0;
+
+    private final Profile defaultProfile;
+    private final List<Profile> profiles = new ArrayList<>();
+    private final boolean adaptive;
+    private final ExportMetrics metrics;
+
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecrease = 0;
+    private long lastOverloads = 0;
+
+    /**
+     * @param config Plugin configuration
+     * @param metrics Metrics of the export, used to detect 429 and 503 responses
+     */
+    public UploadThrottle(ExportConfiguration config, ExportMetrics metrics) {
+        this(config, metrics, config.getUploadThreads(), config.getUploadProfiles());
+    }
+
+    /**
+     * Creates a throttle with a fixed maximum number of concurrent uploads instead of that of uploadThreads and the profiles, e.g. for small files.
+     * The byte rate limit still applies.
+     *
+     * @param config Plugin configuration
+     * @param metrics Metrics of the export, used to detect 429 and 503 responses
+     * @param maxThreads Maximum number of concurrent uploads
+     */
+    public UploadThrottle(ExportConfiguration config, ExportMetrics metrics, int maxThreads) {
+        this(config, metrics, maxThreads, new String[0]);
+    }
+
+    private UploadThrottle(ExportConfiguration config, ExportMetrics metrics, int maxThreads, String[] profileDefinitions) {
+        this(new Profile(null, null, Math.max(1, maxThreads), config.getTargetLatencyMillis(), config.getMaxBytesPerSecond()),
+                config.isAdaptiveConcurrency(), metrics);
+        for (String definition : profileDefinitions) {
+            try {
+                profiles.add(Profile.parse(definition, defaultProfile));
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid upload profile ignored: " + definition + " (" + e.getMessage() + ")");
+            }
+        }
+        int max = getProfile().maxThreads;
+        this.limit = adaptive ? Math.max(1, max / 2) : max;
+    }
+
+    /**
+     * Creates a throttle with a single profile for all times of day.
+     *
+     * @param profile Limits of the uploads
+     * @param adaptive If true, the number of concurrent uploads is adjusted to the latency of Fedora
+     * @param metrics Metrics of the export, used to detect 429 and 503 responses
+     */
+    UploadThrottle(Profile profile, boolean adaptive, ExportMetrics metrics) {
+        this.defaultProfile = profile;
+        this.adaptive = adaptive;
+        this.metrics = metrics;
+        this.limit = adaptive ? Math.max(1, profile.maxThreads / 2) : profile.maxThreads;
+    }
+
+    /**
+     * @return Highest number of concurrent uploads of all profiles
+     */
+    public int getMaxConcurrency() {
+        int max = defaultProfile.maxThreads;
+        for (Profile profile : profiles) {
+            max = Math.max(max, profile.maxThreads);
+        }
+        return max;
+    }
+
+    /**
+     * Waits until another upload may be started.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= getLimit()) {
+            // the profile may change while waiting
+            wait(1000);
+        }
+        inFlight++;
+    }
+
+    /**
+     * Ends an upload started with {@link #acquire()} and adjusts the concurrency.
+     *
+     * @param nanos Duration of the upload
+     * @param bytes Size of the upload
+     * @param success false if the upload failed
+     */
+    public synchronized void release(long nanos, long bytes, boolean success) {
+        inFlight--;
+        notifyAll();
+        if (!adaptive) {
+            return;
+        }
+        Profile profile = getProfile();
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        long overloads = metrics.getStatusCount(429) + metrics.getStatusCount(503);
+        double millisPerMegabyte = millis / Math.max(1, bytes / MEGABYTE);
+        boolean slow = profile.targetLatencyMillis > 0 && millisPerMegabyte > profile.targetLatencyMillis;
+        boolean congested = !success || overloads > lastOverloads || slow;
+        lastOverloads = overloads;
+        long now = System.nanoTime();
+        if (congested) {
+            // uploads that were started before the last decrease must not reduce the concurrency again
+            if (now - lastDecrease > nanos) {
+                limit = Math.max(1, limit * DECREASE_FACTOR);
+                lastDecrease = now;
+                log.debug("Upload concurrency reduced to " + (int) limit + " (" + millis + " ms for " + bytes + " bytes, " + overloads
+                        + " overload responses)");
+            }
+        } else if (limit < profile.maxThreads) {
+            // grows by about one per round of uploads
+            limit = Math.min(profile.maxThreads, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Reserves the given number of bytes of the byte rate shared by all exports.
+     *
+     * @param bytes Size of the upload
+     * @return Time in nanoseconds the upload has to wait before it is started
+     */
+    public long reserve(long bytes) {
+        long bytesPerSecond = getProfile().maxBytesPerSecond;
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        synchronized (UploadThrottle.class) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + (long) (bytes * 1e9 / bytesPerSecond);
+            return start - now;
+        }
+    }
+
+    /**
+     * @return Current number of concurrent uploads
+     */
+    synchronized int getLimit() {
+        int max = getProfile().maxThreads;
+        if (!adaptive) {
+            return max;
+        }
+        limit = Math.min(limit, max);
+        return Math.max(1, (int) limit);
+    }
+
+    private Profile getProfile() {
+        LocalTime now = LocalTime.now();
+        for (Profile profile : profiles) {
+            if (profile.matches(now)) {
+                return profile;
+            }
+        }
+        return defaultProfile;
+    }
+
+    /**
+     * Upload limits for a time of day.
+     */
+    static class Profile {
+
+        private final LocalTime from;
+        private final LocalTime to;
+        private final int maxThreads;
+        private final long targetLatencyMillis;
+        private final long maxBytesPerSecond;
+
+        /**
+         * @param from Start of the time range, or null for the default profile
+         * @param to End of the time range, or null for the default profile
+         * @param maxThreads Maximum number of concurrent uploads
+         * @param targetLatencyMillis Upload duration per megabyte above which adaptive concurrency reduces the number of uploads, or 0
+         * @param maxBytesPerSecond Upload rate of all exports together, or 0 for no limit
+         */
+        Profile(LocalTime from, LocalTime to, int maxThreads, long targetLatencyMillis, long maxBytesPerSecond) {
+            this.from = from;
+            this.to = to;
+            this.maxThreads = maxThreads;
+            this.targetLatencyMillis = targetLatencyMillis;
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        /**
+         * Parses a profile in the form "HH:mm-HH:mm key=value ...", with the keys uploadThreads, targetLatencyMillis and maxMegabytesPerSecond.
+         * Values that are not given are taken from the defaults. The end may be before the start, e.g. "19:00-07:00" for the night.
+         *
+         * @param definition
+         * @param defaults
+         * @return
+         */
+        static Profile parse(String definition, Profile defaults) {
+            String[] parts = definition.trim().split("\\s+");
+            String[] times = parts[0].split("-");
+            if (times.length != 2) {
+                throw new IllegalArgumentException("time range must be given as HH:mm-HH:mm");
+            }
+            int maxThreads = defaults.maxThreads;
+            long targetLatencyMillis = defaults.targetLatencyMillis;
+            long maxBytesPerSecond = defaults.maxBytesPerSecond;
+            try {
+                LocalTime from = LocalTime.parse(times[0]);
+                LocalTime to = LocalTime.parse(times[1]);
+                for (int i = 1; i < parts.length; i++) {
+                    String[] option = parts[i].split("=", 2);
+                    if (option.length != 2) {
+                        throw new IllegalArgumentException("options must be given as key=value");
+                    }
+                    switch (option[0]) {
+                        case "uploadThreads":
+                            maxThreads = Math.max(1, Integer.parseInt(option[1]));
+                            break;
+                        case "targetLatencyMillis":
+                            targetLatencyMillis = Long.parseLong(option[1]);
+                            break;
+                        case "maxMegabytesPerSecond":
+                            maxBytesPerSecond = (long) (Double.parseDouble(option[1]) * 1024 * 1024);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown option " + option[0]);
+                    }
+                }
+                return new Profile(from, to, maxThreads, targetLatencyMillis, maxBytesPerSecond);
+            } catch (DateTimeParseException | NumberFormatException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+
+        int getMaxThreads() {
+            return maxThreads;
+        }
+
+        long getTargetLatencyMillis() {
+            return targetLatencyMillis;
+        }
+
+        long getMaxBytesPerSecond() {
+            return maxBytesPerSecond;
+        }
+
+        /**
+         * @param time
+         * @return true if the time is within the range of the profile, including its start and excluding its end
+         */
+        boolean matches(LocalTime time) {
+            if (from.isBefore(to)) {
+                return !time.isBefore(from) && time.isBefore(to);
+            }
+            // the range spans midnight
+            return !time.isBefore(from) || time.isBefore(to);
+        }
+    }
+}
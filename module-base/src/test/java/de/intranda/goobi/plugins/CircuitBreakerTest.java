@@ -0,0 +1,82 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    /** The breakers are shared per host, so each test uses a host of its own */
+    private static CircuitBreaker create(String host, long openMillis) {
+        return CircuitBreaker.forUrl("http://" + host + ":8080/fedora/rest", 3, openMillis);
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws IOException {
+        CircuitBreaker breaker = create("opens", 60000);
+        breaker.record(false);
+        breaker.record(false);
+        breaker.record(true);
+        breaker.record(false);
+        breaker.record(false);
+        assertFalse(breaker.acquire());
+        breaker.record(false);
+        assertSuspended(breaker);
+    }
+
+    @Test
+    public void testSingleTrialAfterOpenPeriod() throws IOException {
+        CircuitBreaker breaker = create("trial", 0);
+        openBreaker(breaker);
+        assertTrue(breaker.acquire());
+        // only one request is let through until its outcome is known
+        assertSuspended(breaker);
+        breaker.record(true);
+        assertFalse(breaker.acquire());
+    }
+
+    @Test
+    public void testFailedTrialOpensAgain() throws IOException {
+        CircuitBreaker breaker = create("failedtrial", 0);
+        openBreaker(breaker);
+        assertTrue(breaker.acquire());
+        breaker.record(false);
+        assertTrue(breaker.acquire());
+    }
+
+    @Test
+    public void testReleasedTrial() throws IOException {
+        CircuitBreaker breaker = create("released", 0);
+        openBreaker(breaker);
+        assertTrue(breaker.acquire());
+        // the trial request could not be sent, the next request becomes the trial
+        breaker.release();
+        assertTrue(breaker.acquire());
+    }
+
+    @Test
+    public void testSharedPerHost() {
+        CircuitBreaker breaker = create("shared", 60000);
+        assertTrue(breaker == CircuitBreaker.forUrl("http://shared:8080/fedora/rest/records/PPN1", 3, 60000));
+        assertFalse(breaker == CircuitBreaker.forUrl("http://other:8080/fedora/rest", 3, 60000));
+    }
+
+    private static void openBreaker(CircuitBreaker breaker) {
+        for (int i = 0; i < 3; i++) {
+            breaker.record(false);
+        }
+    }
+
+    private static void assertSuspended(CircuitBreaker breaker) {
+        try {
+            breaker.acquire();
+            fail("Breaker is not open");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
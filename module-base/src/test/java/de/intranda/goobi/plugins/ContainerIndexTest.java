@@ -0,0 +1,39 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ContainerIndexTest {
+
+    private static final String CONTAINS = " <http://www.w3.org/ns/ldp#contains> ";
+
+    @Test
+    public void testParseContainedNames() {
+        String ntriples = "<http://localhost/rest/records/PPN1/master>" + CONTAINS + "<http://localhost/rest/records/PPN1/master/00000001.tif> .\n"
+                + "<http://localhost/rest/records/PPN1/master>" + CONTAINS + "<http://localhost/rest/records/PPN1/master/00000002.tif> .\n"
+                + "<http://localhost/rest/records/PPN1/master> <http://purl.org/dc/elements/1.1/title> \"Master\" .\n";
+        assertEquals(new HashSet<>(Arrays.asList("00000001.tif", "00000002.tif")), ContainerIndex.parse(ntriples));
+    }
+
+    @Test
+    public void testParseDecodesNames() {
+        String ntriples = "<http://localhost/rest/records/PPN1>" + CONTAINS + "<http://localhost/rest/records/PPN1/media/> .\n"
+                + "<http://localhost/rest/records/PPN1>" + CONTAINS + "<http://localhost/rest/records/PPN1/file%20name.tif> .\n"
+                + "<http://localhost/rest/records/PPN1>" + CONTAINS + "<http://localhost/rest/records/PPN1/a+b.tif> .\n";
+        Set<String> names = ContainerIndex.parse(ntriples);
+        assertEquals(new HashSet<>(Arrays.asList("media", "file name.tif", "a+b.tif")), names);
+    }
+
+    @Test
+    public void testParseEmpty() {
+        assertTrue(ContainerIndex.parse(null).isEmpty());
+        assertTrue(ContainerIndex.parse("").isEmpty());
+        assertTrue(ContainerIndex.parse("not a triple\n").isEmpty());
+    }
+}
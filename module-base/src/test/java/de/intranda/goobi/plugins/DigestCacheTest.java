@@ -0,0 +1,72 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DigestCacheTest {
+
+    /** SHA-256 of "hello" */
+    private static final String HELLO_HEX = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+    private static final String HELLO_BASE64 = "LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMatchesHexAndBase64() {
+        DigestCache cache = new DigestCache(folder.getRoot().toPath().resolve("digests.txt"), "SHA-256");
+        assertTrue(cache.matches("sha-256=" + HELLO_HEX, HELLO_HEX));
+        assertTrue(cache.matches("SHA-256=" + HELLO_BASE64, HELLO_HEX));
+        assertTrue(cache.matches("md5=XUFAKrxLKna5cZ2REBfFkg==, sha-256=" + HELLO_BASE64, HELLO_HEX.toUpperCase()));
+    }
+
+    @Test
+    public void testDoesNotMatch() {
+        DigestCache cache = new DigestCache(folder.getRoot().toPath().resolve("digests.txt"), "sha-256");
+        assertFalse(cache.matches(null, HELLO_HEX));
+        assertFalse(cache.matches("sha-256=" + HELLO_HEX, null));
+        // digest of a different algorithm
+        assertFalse(cache.matches("sha-512=" + HELLO_HEX, HELLO_HEX));
+        assertFalse(cache.matches("sha-256=" + HELLO_HEX.replace('2', '3'), HELLO_HEX));
+        assertFalse(cache.matches("sha-256=not base64!", HELLO_HEX));
+        assertFalse(cache.matches("sha-256", HELLO_HEX));
+    }
+
+    @Test
+    public void testDigestIsCached() throws IOException {
+        Path cacheFile = folder.getRoot().toPath().resolve("digests.txt");
+        Path file = folder.newFile("00000001.tif").toPath();
+        Files.write(file, "hello".getBytes(StandardCharsets.UTF_8));
+        DigestCache cache = new DigestCache(cacheFile, "sha-256");
+        assertEquals(HELLO_HEX, cache.getDigest(file));
+        cache.save();
+
+        // same size and modification time: the cached digest is used without reading the file
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, "jello".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, modified);
+        assertEquals(HELLO_HEX, new DigestCache(cacheFile, "sha-256").getDigest(file));
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 1000));
+        assertNotEquals(HELLO_HEX, new DigestCache(cacheFile, "sha-256").getDigest(file));
+    }
+
+    @Test
+    public void testChecksumType() {
+        assertEquals("SHA-1", new DigestCache(folder.getRoot().toPath().resolve("a.txt"), "sha").getChecksumType());
+        assertEquals("SHA-256", new DigestCache(folder.getRoot().toPath().resolve("b.txt"), "sha-256").getChecksumType());
+        assertEquals("MD5", new DigestCache(folder.getRoot().toPath().resolve("c.txt"), "md5").getChecksumType());
+    }
+}
@@ -0,0 +1,93 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.goobi.beans.Process;
+import org.goobi.beans.Step;
+import org.goobi.production.enums.StepStatus;
+import org.junit.Test;
+
+public class ExportQueueTest {
+
+    private static Step createStep(int id, boolean exportDms, StepStatus status) {
+        Step step = new Step();
+        step.setId(id);
+        step.setTitel("Step " + id);
+        step.setTypExportDMS(exportDms);
+        step.setBearbeitungsstatusEnum(status);
+        return step;
+    }
+
+    private static Process createProcess(Step... steps) {
+        Process process = new Process();
+        process.setSchritte(Arrays.asList(steps));
+        return process;
+    }
+
+    @Test
+    public void testEnqueueHoldsExportStep() {
+        Step done = createStep(1, true, StepStatus.DONE);
+        Step other = createStep(2, false, StepStatus.INWORK);
+        Step export = createStep(3, true, StepStatus.INWORK);
+        assertSame(export, ExportQueue.holdExportStep(createProcess(done, other, export)));
+        assertEquals(StepStatus.INFLIGHT, export.getBearbeitungsstatusEnum());
+        assertEquals(StepStatus.DONE, done.getBearbeitungsstatusEnum());
+        assertEquals(StepStatus.INWORK, other.getBearbeitungsstatusEnum());
+    }
+
+    @Test
+    public void testEnqueueWithoutExportStep() {
+        Step open = createStep(1, true, StepStatus.OPEN);
+        assertNull(ExportQueue.holdExportStep(createProcess(open)));
+        assertEquals(StepStatus.OPEN, open.getBearbeitungsstatusEnum());
+    }
+
+    @Test
+    public void testRunClosesStepInFlight() {
+        Step export = createStep(1, true, StepStatus.INWORK);
+        ExportQueue.holdExportStep(createProcess(export));
+        assertTrue(ExportQueue.isCloseNeeded(export));
+        assertFalse(ExportQueue.isCloseNeeded(null));
+    }
+
+    @Test
+    public void testRunAfterGoobiClosedStep() {
+        Step export = createStep(1, true, StepStatus.INWORK);
+        ExportQueue.holdExportStep(createProcess(export));
+        // Goobi closes the step when the export reports that the job was queued
+        export.setBearbeitungsstatusEnum(StepStatus.DONE);
+        assertFalse(ExportQueue.isCloseNeeded(export));
+    }
+
+    @Test
+    public void testFailSetsStepInFlightToError() {
+        Step export = createStep(1, true, StepStatus.INWORK);
+        ExportQueue.holdExportStep(createProcess(export));
+        assertTrue(ExportQueue.failExportStep(export));
+        assertEquals(StepStatus.ERROR, export.getBearbeitungsstatusEnum());
+        assertFalse(ExportQueue.failExportStep(export));
+        assertFalse(ExportQueue.failExportStep(null));
+    }
+
+    @Test
+    public void testFailReopensStepClosedByGoobi() {
+        Step export = createStep(1, true, StepStatus.INWORK);
+        ExportQueue.holdExportStep(createProcess(export));
+        export.setBearbeitungsstatusEnum(StepStatus.DONE);
+        assertTrue(ExportQueue.failExportStep(export));
+        assertEquals(StepStatus.ERROR, export.getBearbeitungsstatusEnum());
+    }
+
+    @Test
+    public void testQueuedAgainWhileInFlight() {
+        Step export = createStep(1, true, StepStatus.INFLIGHT);
+        assertSame(export, ExportQueue.holdExportStep(createProcess(export)));
+        assertEquals(StepStatus.INFLIGHT, export.getBearbeitungsstatusEnum());
+    }
+}
@@ -0,0 +1,154 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IngestJournalTest {
+
+    private static final String RECORD = "http://localhost/rest/records/PPN1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path journalFile;
+    private Path image1;
+    private Path image2;
+
+    @Before
+    public void setUp() throws IOException {
+        journalFile = folder.getRoot().toPath().resolve("fedora_journal.txt");
+        image1 = folder.newFile("00000001.tif").toPath();
+        image2 = folder.newFile("00000002.tif").toPath();
+        Files.write(image1, "first image".getBytes(StandardCharsets.UTF_8));
+        Files.write(image2, "second image".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLoadCommittedFiles() throws IOException {
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            assertFalse(journal.isResuming());
+            journal.recordUpload("http://localhost/rest/tx:1", "master/00000001.tif", image1, null, RECORD + "/master/00000001.tif");
+            journal.recordCommit("http://localhost/rest/tx:1");
+            // uploaded, but the transaction was not committed
+            journal.recordUpload("http://localhost/rest/tx:2", "master/00000002.tif", image2, null, RECORD + "/master/00000002.tif");
+        }
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            assertTrue(journal.isResuming());
+            assertEquals(RECORD + "/master/00000001.tif", journal.getCommittedUrl("master/00000001.tif", image1, null));
+            assertNull(journal.getCommittedUrl("master/00000002.tif", image2, null));
+        }
+    }
+
+    @Test
+    public void testChangedFileIsUploadedAgain() throws IOException {
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            journal.recordUpload("http://localhost/rest/tx:1", "master/00000001.tif", image1, null, RECORD + "/master/00000001.tif");
+            journal.recordCommit("http://localhost/rest/tx:1");
+        }
+        Files.setLastModifiedTime(image1, FileTime.fromMillis(Files.getLastModifiedTime(image1).toMillis() + 1000));
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            assertNull(journal.getCommittedUrl("master/00000001.tif", image1, null));
+        }
+    }
+
+    @Test
+    public void testReplacedFileIsUploadedAgain() throws IOException {
+        DigestCache digestCache = new DigestCache(folder.getRoot().toPath().resolve("digests.txt"), "sha-256");
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            journal.recordUpload("http://localhost/rest/tx:1", "master/00000001.tif", image1, digestCache.getDigest(image1),
+                    RECORD + "/master/00000001.tif");
+            journal.recordCommit("http://localhost/rest/tx:1");
+        }
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            assertEquals(RECORD + "/master/00000001.tif", journal.getCommittedUrl("master/00000001.tif", image1, digestCache));
+        }
+        // same size and modification time, but a different content
+        FileTime lastModified = Files.getLastModifiedTime(image1);
+        Files.write(image1, "other image".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(image1, lastModified);
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            assertNull(journal.getCommittedUrl("master/00000001.tif", image1, digestCache));
+            // without digests only size and modification time are compared
+            assertEquals(RECORD + "/master/00000001.tif", journal.getCommittedUrl("master/00000001.tif", image1, null));
+        }
+    }
+
+    @Test
+    public void testDigestIsVerifiedOnce() throws IOException {
+        AtomicInteger reads = new AtomicInteger();
+        DigestCache digestCache = new DigestCache(folder.getRoot().toPath().resolve("digests.txt"), "sha-256") {
+
+            @Override
+            public void invalidate(Path file) {
+                // every digest requested after the cache entry was discarded is read from the file
+                reads.incrementAndGet();
+                super.invalidate(file);
+            }
+        };
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            journal.recordUpload("http://localhost/rest/tx:1", "master/00000001.tif", image1, digestCache.getDigest(image1),
+                    RECORD + "/master/00000001.tif");
+            journal.recordCommit("http://localhost/rest/tx:1");
+        }
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            // once when the folder is planned, once when it is uploaded
+            assertEquals(RECORD + "/master/00000001.tif", journal.getCommittedUrl("master/00000001.tif", image1, digestCache));
+            assertEquals(RECORD + "/master/00000001.tif", journal.getCommittedUrl("master/00000001.tif", image1, digestCache));
+        }
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void testJournalOfOtherRecordIsDiscarded() throws IOException {
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            journal.recordUpload("http://localhost/rest/tx:1", "master/00000001.tif", image1, null, RECORD + "/master/00000001.tif");
+            journal.recordCommit("http://localhost/rest/tx:1");
+        }
+        try (IngestJournal journal = new IngestJournal(journalFile, "http://localhost/rest/records/PPN2")) {
+            assertFalse(journal.isResuming());
+            assertNull(journal.getCommittedUrl("master/00000001.tif", image1, null));
+        }
+        assertEquals("# http://localhost/rest/records/PPN2", Files.readAllLines(journalFile, StandardCharsets.UTF_8).get(0));
+    }
+
+    @Test
+    public void testTruncatedLineIsIgnored() throws IOException {
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            journal.recordUpload("http://localhost/rest/tx:1", "master/00000001.tif", image1, null, RECORD + "/master/00000001.tif");
+            journal.recordCommit("http://localhost/rest/tx:1");
+        }
+        // the export was interrupted while a line was written
+        Files.write(journalFile, "F\thttp://localhost/rest/tx:2\t12".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            assertEquals(RECORD + "/master/00000001.tif", journal.getCommittedUrl("master/00000001.tif", image1, null));
+            journal.recordUpload("http://localhost/rest/tx:3", "master/00000002.tif", image2, null, RECORD + "/master/00000002.tif");
+            journal.recordCommit("http://localhost/rest/tx:3");
+        }
+        try (IngestJournal journal = new IngestJournal(journalFile, RECORD)) {
+            assertEquals(RECORD + "/master/00000002.tif", journal.getCommittedUrl("master/00000002.tif", image2, null));
+        }
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        IngestJournal journal = new IngestJournal(journalFile, RECORD);
+        assertTrue(Files.exists(journalFile));
+        journal.delete();
+        assertFalse(Files.exists(journalFile));
+    }
+}
@@ -0,0 +1,69 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class IngestManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLookupInMemory() throws IOException {
+        try (IngestManifest manifest = new IngestManifest(0, folder.getRoot().toPath())) {
+            manifest.put("master", "00000001.tif", "http://localhost/rest/records/PPN1/master/00000001.tif", "abc");
+            manifest.put("media", "00000001.jpg", "http://localhost/rest/records/PPN1/media/00000001.jpg", null);
+            // the extension is ignored, as Goobi writes the suffix of the file group
+            assertEquals("http://localhost/rest/records/PPN1/master/00000001.tif", manifest.get("master", "00000001.jpg").getUrl());
+            assertEquals("abc", manifest.get("master", "00000001.tif").getChecksum());
+            assertNull(manifest.get("media", "00000001.tif").getChecksum());
+            assertNull(manifest.get("master", "00000002.tif"));
+            assertTrue(manifest.containsFolder("media"));
+            assertFalse(manifest.containsFolder("fulltext"));
+            assertEquals(2, manifest.size());
+        }
+    }
+
+    /** Beyond 10 entries the manifest is moved to a temporary file */
+    @Test
+    public void testLookupAfterSpill() throws IOException {
+        try (IngestManifest manifest = new IngestManifest(10, folder.getRoot().toPath())) {
+            for (int i = 0; i < 1000; i++) {
+                manifest.put("master", getName(i), "http://localhost/master/" + getName(i), i % 2 == 0 ? "digest" + i : null);
+            }
+            assertEquals(1000, manifest.size());
+            for (int i = 0; i < 1000; i++) {
+                IngestManifest.Entry entry = manifest.get("master", getName(i));
+                assertEquals("http://localhost/master/" + getName(i), entry.getUrl());
+                assertEquals(i % 2 == 0 ? "digest" + i : null, entry.getChecksum());
+            }
+            assertNull(manifest.get("master", getName(1000)));
+            assertNull(manifest.get("media", getName(1)));
+        }
+    }
+
+    @Test
+    public void testReplaceAfterSpill() throws IOException {
+        try (IngestManifest manifest = new IngestManifest(2, folder.getRoot().toPath())) {
+            for (int i = 0; i < 5; i++) {
+                manifest.put("master", getName(i), "http://localhost/old/" + i, null);
+            }
+            manifest.put("master", getName(3), "http://localhost/new/3", "digest");
+            assertEquals(5, manifest.size());
+            assertEquals("http://localhost/new/3", manifest.get("master", getName(3)).getUrl());
+            assertEquals("digest", manifest.get("master", getName(3)).getChecksum());
+        }
+    }
+
+    private static String getName(int i) {
+        return String.format("%08d.tif", i + 1);
+    }
+}
@@ -0,0 +1,85 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetsUrlRewriterTest {
+
+    private static final String METS = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\"><mets:fileSec>"
+            + "<mets:fileGrp USE=\"LOCAL\">"
+            + "<mets:file ID=\"FILE_0001\"><mets:FLocat LOCTYPE=\"URL\" xlink:href=\"file:///opt/digiverso/images/00000001.tif\"/></mets:file>"
+            + "</mets:fileGrp>"
+            + "<mets:fileGrp USE=\"PRESENTATION\">"
+            + "<mets:file ID=\"FILE_0001_PRESENTATION\"><mets:FLocat LOCTYPE=\"URL\" xlink:href=\"http://goobi/00000001.tif\"/></mets:file>"
+            + "<mets:file ID=\"FILE_0002_PRESENTATION\"><mets:FLocat LOCTYPE=\"URL\" xlink:href=\"http://goobi/00000002.tif\"/></mets:file>"
+            + "</mets:fileGrp></mets:fileSec></mets:mets>";
+
+    private IngestManifest manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        manifest = new IngestManifest(0, null);
+        manifest.put("master", "00000001.tif", "http://fedora/rest/records/PPN1/master/00000001.tif/fcr:versions/goobi-export.1", "0a1b");
+        manifest.put("media", "00000002.jpg", "http://fedora/rest/records/PPN1/media/00000002.jpg", null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manifest.close();
+    }
+
+    @Test
+    public void testRewritePresentationGroup() throws IOException {
+        MetsUrlRewriter rewriter = new MetsUrlRewriter(manifest, Arrays.asList("master", "media"), "SHA-256");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, rewriter.rewrite(new ByteArrayInputStream(METS.getBytes(StandardCharsets.UTF_8)), out));
+        String result = out.toString(StandardCharsets.UTF_8.name());
+        // the version path is cut off, so the METS file points to the current version
+        assertTrue(result.contains("xlink:href=\"http://fedora/rest/records/PPN1/master/00000001.tif\""));
+        assertTrue(result.contains("xlink:href=\"http://fedora/rest/records/PPN1/media/00000002.jpg\""));
+        assertTrue(result.contains("CHECKSUM=\"0a1b\""));
+        assertTrue(result.contains("CHECKSUMTYPE=\"SHA-256\""));
+        // other file groups keep their locations
+        assertTrue(result.contains("xlink:href=\"file:///opt/digiverso/images/00000001.tif\""));
+        assertFalse(result.contains("http://goobi/"));
+        assertTrue(rewriter.getUnmatchedFiles().isEmpty());
+    }
+
+    @Test
+    public void testUnmatchedFiles() throws IOException {
+        MetsUrlRewriter rewriter = new MetsUrlRewriter(manifest, Collections.singletonList("master"), null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, rewriter.rewrite(new ByteArrayInputStream(METS.getBytes(StandardCharsets.UTF_8)), out));
+        assertEquals(Collections.singletonList("http://goobi/00000002.tif"), rewriter.getUnmatchedFiles());
+        String result = out.toString(StandardCharsets.UTF_8.name());
+        assertTrue(result.contains("xlink:href=\"http://goobi/00000002.tif\""));
+        assertFalse(result.contains("CHECKSUM="));
+    }
+
+    @Test
+    public void testFileName() {
+        assertEquals("00000001.tif", MetsUrlRewriter.getFileName("http://goobi/images/00000001.tif"));
+        assertEquals("file name.tif", MetsUrlRewriter.getFileName("http://goobi/images/file%20name.tif"));
+        assertEquals("a+b.tif", MetsUrlRewriter.getFileName("http://goobi/images/a+b.tif"));
+        assertEquals("100%.tif", MetsUrlRewriter.getFileName("100%.tif"));
+    }
+
+    @Test
+    public void testFileUrl() {
+        assertEquals("http://fedora/rest/a.tif", MetsUrlRewriter.getFileUrl("http://fedora/rest/a.tif/fcr:versions/v1"));
+        assertEquals("http://fedora/rest/a.tif", MetsUrlRewriter.getFileUrl("http://fedora/rest/a.tif"));
+    }
+}
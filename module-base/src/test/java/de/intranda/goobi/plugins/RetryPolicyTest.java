@@ -0,0 +1,86 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(3, 500, 30000, 10, 30);
+
+    @Test
+    public void testTransientStatus() {
+        assertTrue(policy.isTransient(429));
+        assertTrue(policy.isTransient(502));
+        assertTrue(policy.isTransient(503));
+        assertTrue(policy.isTransient(504));
+        assertFalse(policy.isTransient(200));
+        assertFalse(policy.isTransient(404));
+        assertFalse(policy.isTransient(409));
+        assertFalse(policy.isTransient(500));
+    }
+
+    @Test
+    public void testTransientException() {
+        assertTrue(policy.isTransient(new IOException("Connection reset")));
+        assertTrue(policy.isTransient(new SocketTimeoutException()));
+        assertFalse(policy.isTransient(new FileNotFoundException()));
+        assertFalse(policy.isTransient(new UnknownHostException()));
+        assertFalse(policy.isTransient(new InterruptedIOException()));
+    }
+
+    @Test
+    public void testRetryableStatus() {
+        assertTrue(policy.isRetryable("PUT", 502));
+        assertTrue(policy.isRetryable("POST", 503));
+        assertTrue(policy.isRetryable("POST", 429));
+        // the request may have been processed
+        assertFalse(policy.isRetryable("POST", 502));
+        assertFalse(policy.isRetryable("PUT", 404));
+    }
+
+    @Test
+    public void testRetryableException() {
+        assertTrue(policy.isRetryable("PUT", new IOException("Connection reset")));
+        assertFalse(policy.isRetryable("POST", new IOException("Connection reset")));
+        // the request was not sent
+        assertTrue(policy.isRetryable("POST", new ConnectException()));
+        assertFalse(policy.isRetryable("PUT", new FileNotFoundException()));
+    }
+
+    @Test
+    public void testDelay() {
+        for (int attempt = 0; attempt < 5; attempt++) {
+            long max = Math.min(30000, 500L << attempt);
+            long delay = policy.getDelayMillis(attempt, null);
+            assertTrue(delay >= max / 2 && delay <= max);
+        }
+        long delay = policy.getDelayMillis(30, null);
+        assertTrue(delay >= 15000 && delay <= 30000);
+    }
+
+    @Test
+    public void testRetryAfter() {
+        assertEquals(3000, policy.getDelayMillis(0, "3"));
+        assertEquals(30000, policy.getDelayMillis(0, "120"));
+        long delay = policy.getDelayMillis(0, "Wed, 21 Oct 2015 07:28:00 GMT");
+        assertTrue(delay >= 250 && delay <= 500);
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        assertNotNull(policy.getCircuitBreaker("http://localhost:8080/fedora/rest"));
+        assertNull(new RetryPolicy(3, 500, 30000, 0, 30).getCircuitBreaker("http://localhost:8080/fedora/rest"));
+    }
+}
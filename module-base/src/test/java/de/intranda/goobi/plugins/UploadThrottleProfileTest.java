@@ -0,0 +1,66 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalTime;
+
+import org.junit.Test;
+
+public class UploadThrottleProfileTest {
+
+    private static final UploadThrottle.Profile DEFAULTS = new UploadThrottle.Profile(null, null, 2, 500, 1024);
+
+    @Test
+    public void testParse() {
+        UploadThrottle.Profile profile = UploadThrottle.Profile.parse("07:00-19:00 uploadThreads=4 targetLatencyMillis=2000 maxMegabytesPerSecond=20",
+                DEFAULTS);
+        assertEquals(4, profile.getMaxThreads());
+        assertEquals(2000, profile.getTargetLatencyMillis());
+        assertEquals(20L * 1024 * 1024, profile.getMaxBytesPerSecond());
+        assertTrue(profile.matches(LocalTime.of(7, 0)));
+        assertTrue(profile.matches(LocalTime.of(18, 59)));
+        assertFalse(profile.matches(LocalTime.of(19, 0)));
+        assertFalse(profile.matches(LocalTime.of(3, 0)));
+    }
+
+    @Test
+    public void testDefaults() {
+        UploadThrottle.Profile profile = UploadThrottle.Profile.parse("  19:00-07:00   uploadThreads=0 ", DEFAULTS);
+        // at least one upload
+        assertEquals(1, profile.getMaxThreads());
+        assertEquals(500, profile.getTargetLatencyMillis());
+        assertEquals(1024, profile.getMaxBytesPerSecond());
+    }
+
+    @Test
+    public void testRangeOverMidnight() {
+        UploadThrottle.Profile profile = UploadThrottle.Profile.parse("19:00-07:00", DEFAULTS);
+        assertTrue(profile.matches(LocalTime.of(23, 30)));
+        assertTrue(profile.matches(LocalTime.of(0, 0)));
+        assertTrue(profile.matches(LocalTime.of(6, 59)));
+        assertFalse(profile.matches(LocalTime.of(7, 0)));
+        assertFalse(profile.matches(LocalTime.of(12, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingRange() {
+        UploadThrottle.Profile.parse("uploadThreads=4", DEFAULTS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTime() {
+        UploadThrottle.Profile.parse("7-19 uploadThreads=4", DEFAULTS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownOption() {
+        UploadThrottle.Profile.parse("07:00-19:00 threads=4", DEFAULTS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidValue() {
+        UploadThrottle.Profile.parse("07:00-19:00 uploadThreads=many", DEFAULTS);
+    }
+}
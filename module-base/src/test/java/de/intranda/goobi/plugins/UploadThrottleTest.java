@@ -0,0 +1,104 @@
+package de.intranda.goobi.plugins;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class UploadThrottleTest {
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private static UploadThrottle createThrottle(int maxThreads, long targetLatencyMillis, boolean adaptive, ExportMetrics metrics) {
+        return new UploadThrottle(new UploadThrottle.Profile(null, null, maxThreads, targetLatencyMillis, 0), adaptive, metrics);
+    }
+
+    private static void upload(UploadThrottle throttle, long millis, long bytes, boolean success) throws InterruptedException {
+        throttle.acquire();
+        throttle.release(TimeUnit.MILLISECONDS.toNanos(millis), bytes, success);
+    }
+
+    @Test
+    public void testStartsWithHalfOfMaximum() {
+        assertEquals(4, createThrottle(8, 500, true, new ExportMetrics(null)).getLimit());
+        assertEquals(1, createThrottle(1, 500, true, new ExportMetrics(null)).getLimit());
+        assertEquals(8, createThrottle(8, 500, false, new ExportMetrics(null)).getLimit());
+    }
+
+    @Test
+    public void testGrowsByOnePerRound() throws InterruptedException {
+        UploadThrottle throttle = createThrottle(8, 500, true, new ExportMetrics(null));
+        for (int i = 0; i < 4; i++) {
+            upload(throttle, 100, MEGABYTE, true);
+        }
+        assertEquals(4, throttle.getLimit());
+        upload(throttle, 100, MEGABYTE, true);
+        assertEquals(5, throttle.getLimit());
+        for (int i = 0; i < 100; i++) {
+            upload(throttle, 100, MEGABYTE, true);
+        }
+        // never above the maximum of the profile
+        assertEquals(8, throttle.getLimit());
+    }
+
+    @Test
+    public void testSlowUploadHalvesConcurrency() throws InterruptedException {
+        UploadThrottle throttle = createThrottle(8, 500, true, new ExportMetrics(null));
+        upload(throttle, 2000, MEGABYTE, true);
+        assertEquals(2, throttle.getLimit());
+    }
+
+    @Test
+    public void testSmallFileCountsAsOneMegabyte() throws InterruptedException {
+        UploadThrottle throttle = createThrottle(8, 500, true, new ExportMetrics(null));
+        upload(throttle, 400, 1024, true);
+        assertEquals(4, throttle.getLimit());
+        upload(throttle, 600, 1024, true);
+        assertEquals(2, throttle.getLimit());
+    }
+
+    @Test
+    public void testLargeUploadIsNotCongestion() throws InterruptedException {
+        UploadThrottle throttle = createThrottle(8, 500, true, new ExportMetrics(null));
+        // 2 GB in 100 seconds are 50 ms per megabyte
+        for (int i = 0; i < 5; i++) {
+            upload(throttle, 100_000, 2048 * MEGABYTE, true);
+        }
+        assertEquals(5, throttle.getLimit());
+    }
+
+    @Test
+    public void testFailureHalvesConcurrencyOncePerRound() throws InterruptedException {
+        UploadThrottle throttle = createThrottle(8, 0, true, new ExportMetrics(null));
+        upload(throttle, 10_000, MEGABYTE, false);
+        assertEquals(2, throttle.getLimit());
+        // started before the decrease, so it does not reduce the concurrency again
+        upload(throttle, 10_000, MEGABYTE, false);
+        assertEquals(2, throttle.getLimit());
+        // started after the decrease
+        upload(throttle, 0, MEGABYTE, false);
+        assertEquals(1, throttle.getLimit());
+        upload(throttle, 0, MEGABYTE, false);
+        assertEquals(1, throttle.getLimit());
+    }
+
+    @Test
+    public void testOverloadResponseHalvesConcurrency() throws InterruptedException {
+        ExportMetrics metrics = new ExportMetrics(null);
+        UploadThrottle throttle = createThrottle(8, 0, true, metrics);
+        metrics.countStatus(503);
+        upload(throttle, 0, MEGABYTE, true);
+        assertEquals(2, throttle.getLimit());
+        // the same response is not counted twice
+        upload(throttle, 0, MEGABYTE, true);
+        assertEquals(2, throttle.getLimit());
+    }
+
+    @Test
+    public void testFixedConcurrency() throws InterruptedException {
+        UploadThrottle throttle = createThrottle(8, 500, false, new ExportMetrics(null));
+        upload(throttle, 10_000, MEGABYTE, false);
+        assertEquals(8, throttle.getLimit());
+    }
+}
@@ -0,0 +1,43 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Temporary files for the benchmarks.
+ */
+final class BenchmarkFiles {
+
+    private static final byte[] TIFF_HEADER = { 0x49, 0x49, 0x2A, 0x00, 0x08, 0x00, 0x00, 0x00 };
+
+    private BenchmarkFiles() {
+    }
+
+    /**
+     * Creates a folder with the given number of small TIFF files.
+     *
+     * @param files
+     * @return
+     * @throws IOException
+     */
+    static Path createImageFolder(int files) throws IOException {
+        Path folder = Files.createTempDirectory("fedora-benchmark");
+        for (int i = 1; i <= files; i++) {
+            Files.write(folder.resolve(String.format("%08d.tif", i)), TIFF_HEADER);
+        }
+        return folder;
+    }
+
+    static void delete(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            List<Path> paths = files.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList());
+            for (Path path : paths) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package de.intranda.goobi.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rewrite of the file URLs of a METS file (overwriteUrls) for METS files with 1k, 10k and 50k files in each of the PRESENTATION and LOCAL file
+ * groups. The document is read from memory and written to a stream that discards the output, so only parsing, the lookup of the files in the
+ * manifest and writing are measured. With 50k files the manifest exceeds the default number of entries kept in memory and is looked up on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MetsRewriteBenchmark {
+
+    @Param({ "1000", "10000", "50000" })
+    public int files;
+
+    private byte[] mets;
+    private IngestManifest manifest;
+
+    @Setup
+    public void setUp() throws IOException {
+        manifest = new IngestManifest(20000, null);
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">\n  <mets:fileSec>\n");
+        for (String use : new String[] { "PRESENTATION", "LOCAL" }) {
+            sb.append("    <mets:fileGrp USE=\"").append(use).append("\">\n");
+            for (int i = 1; i <= files; i++) {
+                sb.append("      <mets:file ID=\"FILE_").append(i).append('_').append(use).append("\" MIMETYPE=\"image/tiff\">\n");
+                sb.append("        <mets:FLocat LOCTYPE=\"URL\" xlink:href=\"file:///opt/digiverso/goobi/metadata/1/images/media/")
+                        .append(String.format("%08d", i))
+                        .append(".tif\"/>\n");
+                sb.append("      </mets:file>\n");
+            }
+            sb.append("    </mets:fileGrp>\n");
+        }
+        sb.append("  </mets:fileSec>\n</mets:mets>\n");
+        mets = sb.toString().getBytes(StandardCharsets.UTF_8);
+        for (int i = 1; i <= files; i++) {
+            String name = String.format("%08d", i) + ".tif";
+            manifest.put("media", name, "http://localhost:8080/fedora/rest/records/PPN123456789/media/" + name + "/fcr:versions/goobi-export", null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        manifest.close();
+    }
+
+    @Benchmark
+    public long rewrite() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        new MetsUrlRewriter(manifest, Collections.singletonList("media"), null).rewrite(new ByteArrayInputStream(mets), out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.sub.goobi.helper.NIOFileUtils;
+
+/**
+ * Mime type resolution as done for each file in addFileResource: with a resolver that is used for a whole export (the usual case, answered from
+ * the cache after the first file), with a configured mapping, and with a new resolver per file (magic bytes and platform detection every time).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MimeTypeBenchmark {
+
+    private Path folder;
+    private List<Path> files;
+    private MimeTypeResolver resolver;
+    private MimeTypeResolver configuredResolver;
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        folder = BenchmarkFiles.createImageFolder(1000);
+        files = new NIOFileUtils().listFiles(folder.toString());
+        resolver = new MimeTypeResolver(null);
+        configuredResolver = new MimeTypeResolver(new String[] { "tif=image/tiff" });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.delete(folder);
+    }
+
+    private Path nextFile() {
+        index = (index + 1) % files.size();
+        return files.get(index);
+    }
+
+    @Benchmark
+    public String cachedResolver() {
+        return resolver.getMimeType(nextFile());
+    }
+
+    @Benchmark
+    public String configuredMapping() {
+        return configuredResolver.getMimeType(nextFile());
+    }
+
+    @Benchmark
+    public String detectionPerFile() {
+        return new MimeTypeResolver(null).getMimeType(nextFile());
+    }
+}
@@ -0,0 +1,40 @@
+package de.intranda.goobi.plugins;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Removal of the transaction from a resource URL, as done for each uploaded file and log message. The prefix variant is measured as a baseline for
+ * the current search-and-replace implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UrlRewriteBenchmark {
+
+    private final String fedoraUrl = "http://localhost:8080/fedora/rest";
+    private final String transactionUrl = fedoraUrl + "/tx:83e34464-144e-43d9-af13-b050e8de4a3b";
+    private final String url = transactionUrl + "/records/PPN123456789/media/00000001.tif/fcr:versions/goobi-export.2024-01-01-12-00-00";
+
+    @Benchmark
+    public String replace() {
+        return FedoraIngest.toFedoraUrl(url, transactionUrl, fedoraUrl);
+    }
+
+    @Benchmark
+    public String prefix() {
+        return url.startsWith(transactionUrl) ? fedoraUrl + url.substring(transactionUrl.length()) : url;
+    }
+}
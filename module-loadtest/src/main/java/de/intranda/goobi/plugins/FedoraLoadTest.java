@@ -0,0 +1,146 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.configuration2.XMLConfiguration;
+
+/**
+ * Load test of the Fedora export against {@link FedoraStandIn}. A synthetic process is ingested several times with the request sequence of an
+ * export (transaction, containers, master and media uploads, rewritten METS file, commit), and files/s and MB/s are reported per run and as a
+ * median over all runs.
+ * <p>
+ * The runs use the same ingest sequence as an export of a Goobi process. The generation of the METS file from the Goobi metadata and the process
+ * log need a Goobi installation; instead, the prepared METS file of the synthetic process is rewritten and uploaded, and errors are logged.
+ * <p>
+ * Usage: FedoraLoadTest [key=value ...] with the keys images (default 100), imageKB (1024), runs (5), latencyMs (2), bandwidthMBs (0, unlimited),
+ * overloadPercent (0, share of requests rejected with 503), fulltext (false, adds an ALTO and a text file per image) and any option of the plugin
+ * configuration, e.g. uploadThreads=4 or chunkFiles=50.
+ */
+public class FedoraLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        XMLConfiguration pluginConfig = new XMLConfiguration();
+        int images = 100;
+        long imageKB = 1024;
+        int runs = 5;
+        long latencyMs = 2;
+        long bandwidthMBs = 0;
+        double overloadPercent = 0;
+        boolean fulltext = false;
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index < 0) {
+                throw new IllegalArgumentException("Arguments must be given as key=value: " + arg);
+            }
+            String key = arg.substring(0, index);
+            String value = arg.substring(index + 1);
+            switch (key) {
+                case "images":
+                    images = Integer.parseInt(value);
+                    break;
+                case "imageKB":
+                    imageKB = Long.parseLong(value);
+                    break;
+                case "runs":
+                    runs = Integer.parseInt(value);
+                    break;
+                case "latencyMs":
+                    latencyMs = Long.parseLong(value);
+                    break;
+                case "bandwidthMBs":
+                    bandwidthMBs = Long.parseLong(value);
+                    break;
+                case "overloadPercent":
+                    overloadPercent = Double.parseDouble(value);
+                    break;
+                case "fulltext":
+                    fulltext = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    pluginConfig.addProperty(key, value);
+                    break;
+            }
+        }
+
+        Path folder = Files.createTempDirectory("fedora-loadtest");
+        SyntheticProcess process = new SyntheticProcess(folder, images, imageKB * 1024);
+        try (FedoraStandIn fedora = new FedoraStandIn(latencyMs, bandwidthMBs * 1024 * 1024)) {
+            fedora.setOverloadRate(overloadPercent / 100);
+            process.create();
+            if (fulltext) {
+                process.createFulltext();
+            }
+            pluginConfig.addProperty("fedoraUrl", fedora.getUrl());
+            ExportConfiguration config = ExportConfiguration.read(pluginConfig);
+            System.out.println(String.format(Locale.ENGLISH, "%d files, %.1f MB per run, latency %d ms, bandwidth %s", process.getTotalFiles(),
+                    process.getTotalBytes() / (1024.0 * 1024), latencyMs, bandwidthMBs > 0 ? bandwidthMBs + " MB/s" : "unlimited"));
+
+            double[] filesPerSecond = new double[runs];
+            double[] megabytesPerSecond = new double[runs];
+            ThroughputHistory history = ThroughputHistory.create(config);
+            try (FedoraClient client = FedoraClient.acquire(config.getClientSettings())) {
+                for (int run = 0; run < runs; run++) {
+                    String identifier = "LOADTEST_" + run;
+                    IngestPlan plan = new FedoraIngest(null, config, client).plan(identifier, process.getMetsFile().getParent(),
+                            process.getMasterFolder(), process.getMediaFolder(), fulltext ? getFulltextFolders(process) : null);
+                    System.out.println("  " + plan.getSummary(history));
+                    FedoraIngest ingest = new FedoraIngest(null, config, client);
+                    long start = System.nanoTime();
+                    ingest(ingest, identifier, process, fulltext);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    if (history != null) {
+                        ExportMetrics metrics = ingest.getMetrics();
+                        history.record(metrics.getUploadedBytes(), metrics.getRequestCount(), metrics.getElapsedMillis());
+                    }
+                    filesPerSecond[run] = process.getTotalFiles() / seconds;
+                    megabytesPerSecond[run] = process.getTotalBytes() / (1024.0 * 1024) / seconds;
+                    System.out.println(String.format(Locale.ENGLISH, "run %d: %.2f s, %.1f files/s, %.1f MB/s", run + 1, seconds,
+                            filesPerSecond[run], megabytesPerSecond[run]));
+                    System.out.println("  " + ingest.getMetrics().getSummary());
+                }
+            }
+            System.out.println(String.format(Locale.ENGLISH, "median: %.1f files/s, %.1f MB/s; %d requests, %d binaries in the stand-in",
+                    median(filesPerSecond), median(megabytesPerSecond), fedora.getRequests(), fedora.getBinaryCount()));
+            if (fedora.getOpenTransactions() > 0) {
+                System.out.println("WARNING: " + fedora.getOpenTransactions() + " transactions were left open");
+            }
+        } finally {
+            process.delete();
+        }
+        FedoraClient.shutdown();
+    }
+
+    /**
+     * Runs the requests of an export for the synthetic process.
+     */
+    private static void ingest(FedoraIngest ingest, String identifier, SyntheticProcess process, boolean fulltext) throws IOException {
+        Path metsFile = process.getMetsFile().resolveSibling("LOADTEST.xml");
+        FedoraIngest.MetsFileWriter metsWriter = () -> {
+            ingest.overwriteUrls(process.getMetsFile(), metsFile);
+            return metsFile;
+        };
+        if (!ingest.ingest(identifier, process.getMetsFile().getParent(), process.getMasterFolder(), process.getMediaFolder(),
+                fulltext ? getFulltextFolders(process) : null, metsWriter, null)) {
+            throw new IOException("Ingest of " + identifier + " failed, see the log");
+        }
+    }
+
+    private static Map<String, Path> getFulltextFolders(SyntheticProcess process) {
+        Map<String, Path> folders = new LinkedHashMap<>();
+        folders.put("alto", process.getAltoFolder());
+        folders.put("txt", process.getTxtFolder());
+        return folders;
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,527 @@
+package de.intranda.goobi.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Fedora REST API, as far as it is used by the export: transactions (fcr:tx, commit, rollback, refresh), LDP containers
+ * with their containment triples, binaries created with PUT, new versions created with POST on fcr:versions, and tombstones of deleted resources.
+ * <p>
+ * Binaries are not stored; only their size and SHA-256 digest are kept, so the stand-in can hold large synthetic processes. HEAD requests report the
+ * digest if "sha-256" is requested with "Want-Digest", and uploads with a "Digest" header are verified against it. Binaries created as external
+ * content with a file URI in the "Link" header are read from the file system instead of the request body. A latency is added to every
+ * request and request bodies are read at the configured bandwidth, to model a remote repository. A share of the requests can be rejected with 503,
+ * to model an overloaded repository.
+ */
+public class FedoraStandIn implements AutoCloseable {
+
+    private static final String REST = "/rest";
+    private static final String LDP_CONTAINS = "http://www.w3.org/ns/ldp#contains";
+    private static final long TRANSACTION_LIFETIME_MILLIS = 3 * 60 * 1000L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private volatile double overloadRate = 0;
+
+    /** Committed resources by path below the REST endpoint (without leading slash) */
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Map<String, Transaction> transactions = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    /**
+     * Starts the stand-in on a free local port.
+     *
+     * @param latencyMillis Delay added to each request
+     * @param bytesPerSecond Bandwidth for request bodies per connection, or 0 for no limit
+     * @throws IOException
+     */
+    public FedoraStandIn(long latencyMillis, long bytesPerSecond) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(REST, this::handle);
+        server.start();
+    }
+
+    /**
+     * @return REST endpoint, to be used as "fedoraUrl"
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + REST;
+    }
+
+    /**
+     * @param overloadRate Share of the requests (0 to 1) that are rejected with 503 without any effect
+     */
+    public void setOverloadRate(double overloadRate) {
+        this.overloadRate = overloadRate;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+
+    /**
+     * @return Number of committed binaries
+     */
+    public synchronized int getBinaryCount() {
+        int count = 0;
+        for (Node node : nodes.values()) {
+            if (node != null && !node.container && !node.tombstone) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of transactions that were neither committed nor rolled back
+     */
+    public int getOpenTransactions() {
+        return transactions.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            byte[] digest = readBody(exchange);
+            URI externalContent = getExternalContent(exchange);
+            if (externalContent != null) {
+                digest = readExternalContent(exchange, externalContent);
+                if (digest == null) {
+                    return;
+                }
+            }
+            if (overloadRate > 0 && ThreadLocalRandom.current().nextDouble() < overloadRate) {
+                send(exchange, 503, "Service unavailable");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath().substring(REST.length());
+            path = path.startsWith("/") ? path.substring(1) : path;
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+
+            // Transaction handling
+            if ("fcr:tx".equals(path) && "POST".equals(exchange.getRequestMethod())) {
+                Transaction transaction = new Transaction("tx:" + UUID.randomUUID());
+                transactions.put(transaction.id, transaction);
+                exchange.getResponseHeaders().add("Location", getUrl() + "/" + transaction.id);
+                addExpires(exchange, transaction);
+                send(exchange, 201, null);
+                return;
+            }
+            Transaction transaction = null;
+            String base = getUrl();
+            if (path.startsWith("tx:")) {
+                int index = path.indexOf('/');
+                String id = index < 0 ? path : path.substring(0, index);
+                path = index < 0 ? "" : path.substring(index + 1);
+                transaction = transactions.get(id);
+                if (transaction == null || transaction.expires < System.currentTimeMillis()) {
+                    transactions.remove(id);
+                    send(exchange, 410, "Transaction " + id + " does not exist or has expired");
+                    return;
+                }
+                base = base + "/" + id;
+                if (path.startsWith("fcr:tx")) {
+                    handleTransaction(exchange, transaction, path);
+                    return;
+                }
+            }
+            handleResource(exchange, transaction, base, path, digest);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "Interrupted");
+        } catch (RuntimeException e) {
+            send(exchange, 500, e.toString());
+        }
+    }
+
+    private void handleTransaction(HttpExchange exchange, Transaction transaction, String path) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            send(exchange, 405, null);
+            return;
+        }
+        switch (path) {
+            case "fcr:tx":
+                transaction.expires = System.currentTimeMillis() + TRANSACTION_LIFETIME_MILLIS;
+                addExpires(exchange, transaction);
+                send(exchange, 204, null);
+                break;
+            case "fcr:tx/fcr:commit":
+                synchronized (this) {
+                    nodes.putAll(transaction.changes);
+                    nodes.values().removeIf(node -> node == null);
+                }
+                transactions.remove(transaction.id);
+                send(exchange, 204, null);
+                break;
+            case "fcr:tx/fcr:rollback":
+                transactions.remove(transaction.id);
+                send(exchange, 204, null);
+                break;
+            default:
+                send(exchange, 404, null);
+                break;
+        }
+    }
+
+    private synchronized void handleResource(HttpExchange exchange, Transaction transaction, String base, String path, byte[] digest)
+            throws IOException {
+        String method = exchange.getRequestMethod();
+        boolean hasBody = exchange.getRequestHeaders().getFirst("Content-Type") != null || getExternalContent(exchange) != null;
+        if (path.endsWith("/fcr:tombstone")) {
+            String target = path.substring(0, path.length() - "/fcr:tombstone".length());
+            Node node = lookup(transaction, target);
+            if (node == null || !node.tombstone) {
+                send(exchange, 404, null);
+            } else if ("DELETE".equals(method)) {
+                change(transaction, target, null);
+                send(exchange, 204, null);
+            } else {
+                send(exchange, 405, null);
+            }
+            return;
+        }
+        if (path.endsWith("/fcr:versions")) {
+            String target = path.substring(0, path.length() - "/fcr:versions".length());
+            Node node = lookup(transaction, target);
+            if (!"POST".equals(method)) {
+                send(exchange, 405, null);
+            } else if (node == null || node.tombstone || node.container) {
+                send(exchange, node != null && node.tombstone ? 410 : 404, null);
+            } else if (!checkDigest(exchange, digest)) {
+                return;
+            } else {
+                change(transaction, target, Node.binary(digest, node.versions + 1));
+                String slug = exchange.getRequestHeaders().getFirst("Slug");
+                exchange.getResponseHeaders().add("Location", base + "/" + target + "/fcr:versions/" + (slug == null ? "v" + node.versions : slug));
+                send(exchange, 201, null);
+            }
+            return;
+        }
+
+        Node node = lookup(transaction, path);
+        if (node != null && node.tombstone) {
+            exchange.getResponseHeaders().add("Link", "<" + base + "/" + path + "/fcr:tombstone>; rel=\"hasTombstone\"");
+            send(exchange, 410, "Discovered tombstone resource at /" + path);
+            return;
+        }
+        switch (method) {
+            case "HEAD":
+            case "GET":
+                if (node == null && !path.isEmpty()) {
+                    send(exchange, 404, null);
+                } else if (node == null || node.container) {
+                    send(exchange, 200, "HEAD".equals(method) ? null : listContainer(transaction, base, path));
+                } else {
+                    String wantDigest = exchange.getRequestHeaders().getFirst("Want-Digest");
+                    if (wantDigest != null && wantDigest.toLowerCase(Locale.ENGLISH).contains("sha-256")) {
+                        exchange.getResponseHeaders().add("Digest", "sha-256=" + Base64.getEncoder().encodeToString(node.digest));
+                    }
+                    send(exchange, 200, null);
+                }
+                break;
+            case "PUT":
+                if (node != null && hasBody == node.container) {
+                    send(exchange, 409, "Resource exists with a different interaction model: /" + path);
+                    return;
+                }
+                if (hasBody && !checkDigest(exchange, digest)) {
+                    return;
+                }
+                createParents(transaction, path);
+                if (hasBody) {
+                    change(transaction, path, Node.binary(digest, node == null ? 0 : node.versions));
+                } else {
+                    change(transaction, path, Node.container());
+                }
+                exchange.getResponseHeaders().add("Location", base + "/" + path);
+                send(exchange, node == null ? 201 : 204, null);
+                break;
+            case "DELETE":
+                if (node == null) {
+                    send(exchange, 404, null);
+                    return;
+                }
+                for (String child : listDescendants(transaction, path)) {
+                    change(transaction, child, null);
+                }
+                change(transaction, path, Node.tombstone());
+                send(exchange, 204, null);
+                break;
+            default:
+                send(exchange, 405, null);
+                break;
+        }
+    }
+
+    /**
+     * Fedora creates missing ancestors implicitly as pairtree nodes; they are modelled as plain containers.
+     */
+    private void createParents(Transaction transaction, String path) {
+        int index = path.lastIndexOf('/');
+        while (index > 0) {
+            String parent = path.substring(0, index);
+            if (lookup(transaction, parent) == null) {
+                change(transaction, parent, Node.container());
+            }
+            index = parent.lastIndexOf('/');
+        }
+    }
+
+    private String listContainer(Transaction transaction, String base, String path) {
+        String subject = path.isEmpty() ? base : base + "/" + path;
+        StringBuilder sb = new StringBuilder();
+        for (String child : listDescendants(transaction, path)) {
+            String name = path.isEmpty() ? child : child.substring(path.length() + 1);
+            if (name.indexOf('/') < 0 && !lookup(transaction, child).tombstone) {
+                sb.append('<').append(subject).append("> <").append(LDP_CONTAINS).append("> <").append(base).append('/').append(child).append("> .\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private List<String> listDescendants(Transaction transaction, String path) {
+        String prefix = path.isEmpty() ? "" : path + "/";
+        TreeSet<String> keys = new TreeSet<>(nodes.keySet());
+        if (transaction != null) {
+            keys.addAll(transaction.changes.keySet());
+        }
+        List<String> descendants = new ArrayList<>();
+        for (String key : keys) {
+            if (key.startsWith(prefix) && lookup(transaction, key) != null) {
+                descendants.add(key);
+            }
+        }
+        return descendants;
+    }
+
+    private Node lookup(Transaction transaction, String path) {
+        if (transaction != null && transaction.changes.containsKey(path)) {
+            return transaction.changes.get(path);
+        }
+        return nodes.get(path);
+    }
+
+    /**
+     * Changes a resource within the transaction, or directly if there is none. A null node removes the resource.
+     */
+    private void change(Transaction transaction, String path, Node node) {
+        if (transaction != null) {
+            transaction.changes.put(path, node);
+        } else if (node == null) {
+            nodes.remove(path);
+        } else {
+            nodes.put(path, node);
+        }
+    }
+
+    /**
+     * Reads the request body at the configured bandwidth.
+     *
+     * @return SHA-256 digest of the body
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException, InterruptedException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long start = System.nanoTime();
+        long total = 0;
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+                total += read;
+                if (bytesPerSecond > 0) {
+                    long due = total * 1000L / bytesPerSecond - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (due > 0) {
+                        Thread.sleep(due);
+                    }
+                }
+            }
+        }
+        receivedBytes.addAndGet(total);
+        return messageDigest.digest();
+    }
+
+    /**
+     * @return Location of the content if the request creates a binary with external content, otherwise null
+     */
+    private static URI getExternalContent(HttpExchange exchange) {
+        List<String> links = exchange.getRequestHeaders().get("Link");
+        if (links != null) {
+            for (String link : links) {
+                if (link.contains("rel=\"" + ExternalContentMapper.EXTERNAL_CONTENT + "\"") && link.startsWith("<")) {
+                    return URI.create(link.substring(1, link.indexOf('>')));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads external content from the file system, as Fedora does with the "copy" handling.
+     *
+     * @return SHA-256 digest of the content, or null if the request was rejected because the content is not readable
+     */
+    private static byte[] readExternalContent(HttpExchange exchange, URI uri) throws IOException {
+        if (!"file".equals(uri.getScheme())) {
+            send(exchange, 400, "Only file URIs are supported as external content: " + uri);
+            return null;
+        }
+        Path file = Paths.get(uri);
+        if (!Files.isReadable(file)) {
+            send(exchange, 400, "External content is not readable: " + uri);
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compares the body with a SHA-256 "Digest" header (hex or base64) of the request, like Fedora does, and rejects the request on a mismatch.
+     *
+     * @return false if the request was rejected
+     */
+    private static boolean checkDigest(HttpExchange exchange, byte[] digest) throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("Digest");
+        if (header == null || !header.toLowerCase(Locale.ENGLISH).startsWith("sha-256=")) {
+            return true;
+        }
+        String value = header.substring("sha-256=".length()).trim();
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        if (value.equalsIgnoreCase(hex.toString()) || value.equals(Base64.getEncoder().encodeToString(digest))) {
+            return true;
+        }
+        send(exchange, 409, "Checksum mismatch, computed SHA-256 digest " + hex + " does not match " + value);
+        return false;
+    }
+
+    private static void addExpires(HttpExchange exchange, Transaction transaction) {
+        DateTimeFormatter format = DateTimeFormatter.RFC_1123_DATE_TIME;
+        exchange.getResponseHeaders().add("Date", format.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        exchange.getResponseHeaders().add("Expires", format.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(transaction.expires), ZoneOffset.UTC)));
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        if (body != null) {
+            exchange.getResponseHeaders().add("Content-Type", status < 300 ? "application/n-triples" : "text/plain");
+        }
+        boolean noBody = "HEAD".equals(exchange.getRequestMethod()) || status == 204 || bytes.length == 0;
+        exchange.sendResponseHeaders(status, noBody ? -1 : bytes.length);
+        if (!noBody) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        exchange.close();
+    }
+
+    private static class Transaction {
+
+        private final String id;
+        /** Changed resources by path; null values mark removed resources */
+        private final Map<String, Node> changes = new HashMap<>();
+        private volatile long expires = System.currentTimeMillis() + TRANSACTION_LIFETIME_MILLIS;
+
+        private Transaction(String id) {
+            this.id = id;
+        }
+    }
+
+    private static class Node {
+
+        private final boolean container;
+        private final boolean tombstone;
+        private final byte[] digest;
+        private final int versions;
+
+        private Node(boolean container, boolean tombstone, byte[] digest, int versions) {
+            this.container = container;
+            this.tombstone = tombstone;
+            this.digest = digest;
+            this.versions = versions;
+        }
+
+        private static Node container() {
+            return new Node(true, false, null, 0);
+        }
+
+        private static Node binary(byte[] digest, int versions) {
+            return new Node(false, false, digest, versions);
+        }
+
+        private static Node tombstone() {
+            return new Node(false, true, null, 0);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package de.intranda.goobi.plugins;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Process folder with synthetic content for load tests: master and media folders with the given number of images of the given size, and a METS
+ * file with a PRESENTATION file group that refers to the media images. The images start with a TIFF header and contain random data, so they are
+ * recognized as TIFF and cannot be compressed on the way. Optionally, ALTO and plain text folders with one small file per image are written as well.
+ */
+public class SyntheticProcess {
+
+    private static final byte[] TIFF_HEADER = { 0x49, 0x49, 0x2A, 0x00 };
+
+    private static final String[] WORDS = { "der", "die", "und", "in", "den", "von", "zu", "das", "mit", "sich", "Stadt", "Kirche", "Jahre", "Herr",
+            "Rath", "Zeitung", "Berlin", "Gemeinde", "welche", "wurde" };
+
+    private final Path folder;
+    private final int images;
+    private final long imageSize;
+
+    /**
+     * @param folder Process folder; it is created if necessary
+     * @param images Number of images per folder
+     * @param imageSize Size of each image in bytes
+     */
+    public SyntheticProcess(Path folder, int images, long imageSize) {
+        this.folder = folder;
+        this.images = images;
+        this.imageSize = imageSize;
+    }
+
+    /**
+     * Writes the images and the METS file.
+     *
+     * @throws IOException
+     */
+    public void create() throws IOException {
+        Random random = new Random(images);
+        byte[] buffer = new byte[64 * 1024];
+        for (Path imageFolder : new Path[] { getMasterFolder(), getMediaFolder() }) {
+            Files.createDirectories(imageFolder);
+            for (int i = 1; i <= images; i++) {
+                try (OutputStream out = Files.newOutputStream(imageFolder.resolve(getImageName(i)))) {
+                    long remaining = imageSize;
+                    boolean first = true;
+                    while (remaining > 0) {
+                        random.nextBytes(buffer);
+                        if (first) {
+                            System.arraycopy(TIFF_HEADER, 0, buffer, 0, TIFF_HEADER.length);
+                            first = false;
+                        }
+                        int length = (int) Math.min(buffer.length, remaining);
+                        out.write(buffer, 0, length);
+                        remaining -= length;
+                    }
+                }
+            }
+        }
+        writeMetsFile();
+    }
+
+    /**
+     * Writes an ALTO file and a plain text file for each image.
+     *
+     * @throws IOException
+     */
+    public void createFulltext() throws IOException {
+        Files.createDirectories(getAltoFolder());
+        Files.createDirectories(getTxtFolder());
+        Random random = new Random(images);
+        for (int i = 1; i <= images; i++) {
+            String name = String.format("%08d", i);
+            StringBuilder text = new StringBuilder();
+            StringBuilder alto = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            alto.append("<alto xmlns=\"http://www.loc.gov/standards/alto/ns-v4#\">\n  <Layout>\n    <Page ID=\"P").append(i)
+                    .append("\">\n      <PrintSpace>\n        <TextBlock>\n");
+            for (int line = 0; line < 30; line++) {
+                alto.append("          <TextLine>\n");
+                for (int word = 0; word < 8; word++) {
+                    String content = WORDS[random.nextInt(WORDS.length)];
+                    text.append(content).append(word < 7 ? ' ' : '\n');
+                    alto.append("            <String CONTENT=\"").append(content).append("\" HPOS=\"").append(100 + word * 150).append("\" VPOS=\"")
+                            .append(200 + line * 60).append("\" WIDTH=\"140\" HEIGHT=\"50\"/>\n");
+                }
+                alto.append("          </TextLine>\n");
+            }
+            alto.append("        </TextBlock>\n      </PrintSpace>\n    </Page>\n  </Layout>\n</alto>\n");
+            Files.write(getAltoFolder().resolve(name + ".xml"), alto.toString().getBytes(StandardCharsets.UTF_8));
+            Files.write(getTxtFolder().resolve(name + ".txt"), text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Removes the process folder.
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        if (!Files.exists(folder)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public Path getMasterFolder() {
+        return folder.resolve("images").resolve("master_media");
+    }
+
+    public Path getMediaFolder() {
+        return folder.resolve("images").resolve("media");
+    }
+
+    public Path getAltoFolder() {
+        return folder.resolve("ocr").resolve("alto");
+    }
+
+    public Path getTxtFolder() {
+        return folder.resolve("ocr").resolve("txt");
+    }
+
+    /**
+     * @return METS file as written by Goobi, with local file URLs
+     */
+    public Path getMetsFile() {
+        return folder.resolve("meta_export.xml");
+    }
+
+    /**
+     * @return Total size of all images
+     */
+    public long getTotalBytes() {
+        return 2 * images * imageSize;
+    }
+
+    public int getTotalFiles() {
+        return 2 * images;
+    }
+
+    private static String getImageName(int index) {
+        return String.format("%08d.tif", index);
+    }
+
+    private void writeMetsFile() throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(getMetsFile(), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">\n");
+            writer.write("  <mets:fileSec>\n");
+            writer.write("    <mets:fileGrp USE=\"PRESENTATION\">\n");
+            for (int i = 1; i <= images; i++) {
+                writer.write("      <mets:file ID=\"FILE_" + i + "_PRESENTATION\" MIMETYPE=\"image/tiff\">\n");
+                writer.write("        <mets:FLocat LOCTYPE=\"URL\" xlink:href=\"file:///" + getMediaFolder() + "/" + getImageName(i) + "\"/>\n");
+                writer.write("      </mets:file>\n");
+            }
+            writer.write("    </mets:fileGrp>\n");
+            writer.write("  </mets:fileSec>\n");
+            writer.write("</mets:mets>\n");
+        }
+    }
+}